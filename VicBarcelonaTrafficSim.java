@@ -1,13 +1,57 @@
 import javax.swing.*;
 import javax.swing.text.*;
+import javax.swing.text.html.HTMLDocument;
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.List;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
-
-public class VicBarcelonaTrafficSim extends JPanel {
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+import com.sun.net.httpserver.HttpServer;
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+public class VicBarcelonaTrafficSim {
 
     // ── Constantes de la carretera ─────────────────────────────────────────
     static final int ROAD_LEN = 180, LANES = 3;
@@ -16,16 +60,49 @@ public class VicBarcelonaTrafficSim extends JPanel {
     static final int DEF_ENTRY_VIC = 30, DEF_ENTRY_CEN = 20, DEF_EXIT_GRAN = 12, DEF_EXIT_BCN = 20;
     static final int DEF_GAP = 2, DEF_TICK = 80, DEF_RAB_CAP = 6, DEF_RAB_EXIT = 10, DEF_PCT_EXIT = 35;
 
-    // ── Estado de la simulacion ────────────────────────────────────────────
-    volatile int entryVic = DEF_ENTRY_VIC, entryCen = DEF_ENTRY_CEN;
-    volatile int exitGran = DEF_EXIT_GRAN, exitBcn = DEF_EXIT_BCN;
-    volatile int gap = DEF_GAP, tickMs = DEF_TICK;
-    volatile int rabCap = DEF_RAB_CAP, rabExit = DEF_RAB_EXIT, pctExit = DEF_PCT_EXIT;
-    volatile boolean rabOn = true, lightsOn = true;
+    // ── Parametros de la simulacion ───────────────────────────────────────
+    // Registro inmutable: los controles publican una copia nueva en 'cfg' y tick() la lee una sola
+    // vez al empezar (tp), asi un preset no puede cambiar valores a mitad de tick. Las claves son
+    // las mismas que usa explainAction().
+    record Params(int entryVic, int entryCen, int exitGran, int exitBcn, int gap, int tickMs,
+                  int rabCap, int rabExit, int pctExit, boolean rabOn, boolean lightsOn) {
+        static final List<String> KEYS = List.of("vic", "cen", "gran", "bcn", "gap", "tick", "rabcap", "rabexit", "pct", "rab", "lights");
+        static final List<String> NAMES = List.of("entryVic", "entryCen", "exitGran", "exitBcn", "gap", "tickMs", "rabCap", "rabExit", "pctExit", "rabOn", "lightsOn");
+        static final Params DEFAULT = new Params(DEF_ENTRY_VIC, DEF_ENTRY_CEN, DEF_EXIT_GRAN, DEF_EXIT_BCN, DEF_GAP, DEF_TICK,
+                                                 DEF_RAB_CAP, DEF_RAB_EXIT, DEF_PCT_EXIT, true, true);
+
+        int[] values() {
+            return new int[]{entryVic, entryCen, exitGran, exitBcn, gap, tickMs, rabCap, rabExit, pctExit, rabOn ? 1 : 0, lightsOn ? 1 : 0};
+        }
+
+        static Params of(int[] v) { return new Params(v[0], v[1], v[2], v[3], v[4], v[5], v[6], v[7], v[8], v[9] != 0, v[10] != 0); }
+
+        int get(String key) { return values()[index(key)]; }
+
+        Params with(String key, int value) { int[] v = values(); v[index(key)] = value; return of(v); }
+
+        static int index(String key) {
+            int i = KEYS.indexOf(key);
+            if (i < 0) i = NAMES.indexOf(key); // en los guiones tambien vale el nombre del componente
+            if (i < 0) throw new IllegalArgumentException("parametro desconocido: " + key);
+            return i;
+        }
+    }
+
+    // Cambio de parametros programado para un instante de simulacion
+    record Change(long atMs, long seq, UnaryOperator<Params> op) {}
+
+    final AtomicReference<Params> cfg = new AtomicReference<>(Params.DEFAULT);
+    Params tp = Params.DEFAULT; // parametros del tick en curso
+    final PriorityBlockingQueue<Change> pending = new PriorityBlockingQueue<>(16,
+        Comparator.comparingLong(Change::atMs).thenComparingLong(Change::seq));
+    final AtomicLong changeSeq = new AtomicLong();
 
     // ── Clases internas ────────────────────────────────────────────────────
     static class Car {
         final int id; int lane, pos; boolean braking, wantsExit, inRab; int rabProg; final Color color;
+        int wRab, wLight, wCell; // ticks frenado por rotonda llena, semaforo en rojo o celda/salida ocupada
+        int v; // celdas por tick, solo en el motor Nagel-Schreckenberg
         Car(int id, int pos, int lane, boolean we) {
             this.id = id; this.pos = pos; this.lane = lane; this.wantsExit = we;
             color = Color.getHSBColor((id * 0.071f) % 1f, 0.55f, 0.92f);
@@ -39,12 +116,1507 @@ public class VicBarcelonaTrafficSim extends JPanel {
         boolean consume() { if (tokens >= 1) { tokens--; return true; } return false; }
     }
 
-    static class Light {
-        int pos; String name; boolean red; int greenMs, redMs; long last = System.currentTimeMillis();
-        Light(int p, String n, int g, int r) { pos = p; name = n; greenMs = g; redMs = r; }
-        void update(long now) {
-            if (red && now - last >= redMs)       { red = false; last = now; }
-            else if (!red && now - last >= greenMs) { red = true;  last = now; }
+    static class Light {
+        int pos; String name; boolean red; int greenMs, redMs; long last; // last: reloj de simulacion (ms)
+        Light(int p, String n, int g, int r) { pos = p; name = n; greenMs = g; redMs = r; }
+        void update(long now) {
+            if (red && now - last >= redMs)       { red = false; last = now; }
+            else if (!red && now - last >= greenMs) { red = true;  last = now; }
+        }
+    }
+
+    // SplitMix64: generador con estado de un solo long, guardable en un checkpoint
+    static final class Rng {
+        long state;
+        Rng(long seed) { state = seed; }
+        synchronized double nextDouble() {
+            long z = (state += 0x9E3779B97F4A7C15L);
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L; z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            return ((z ^ (z >>> 31)) >>> 11) * 0x1.0p-53;
+        }
+        synchronized long get() { return state; }
+        synchronized void set(long s) { state = s; }
+    }
+
+    // Histograma de latencias sin locks: cubetas fijas en microsegundos
+    static class Hist {
+        static final long[] LE_US = {50, 100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000};
+        static final long[] WAIT_US = {1000, 10000, 50000, 100000, 250000, 500000, 1000000, 2500000, 5000000, 10000000, 30000000, 60000000};
+        final long[] le;
+        final AtomicLongArray counts;
+        final LongAdder sumUs = new LongAdder();
+        Hist() { this(LE_US); }
+        Hist(long[] le) { this.le = le; counts = new AtomicLongArray(le.length + 1); }
+        void observe(long nanos) {
+            long us = nanos / 1000; int b = 0;
+            while (b < le.length && us > le[b]) b++;
+            counts.incrementAndGet(b); sumUs.add(us);
+        }
+        // Cuantil aproximado interpolando dentro del cubo; el cubo abierto se acota al doble del ultimo limite
+        double quantileMs(double q) {
+            long n = 0; for (int b = 0; b < counts.length(); b++) n += counts.get(b);
+            if (n == 0) return 0;
+            double rank = q * n; long acc = 0;
+            for (int b = 0; b < counts.length(); b++) {
+                long c = counts.get(b);
+                if (c > 0 && acc + c >= rank) {
+                    double lo = b == 0 ? 0 : le[b - 1], hi = b < le.length ? le[b] : 2.0 * le[le.length - 1];
+                    return (lo + (hi - lo) * (rank - acc) / c) / 1000;
+                }
+                acc += c;
+            }
+            return 0;
+        }
+        double meanMs() {
+            long n = 0; for (int b = 0; b < counts.length(); b++) n += counts.get(b);
+            return n == 0 ? 0 : sumUs.sum() / 1000.0 / n;
+        }
+    }
+
+    // Foto inmutable del estado publicada al final de cada tick (la lee /metrics)
+    static final class Snapshot {
+        final long tick, simSec, exGran, exBcn, enVic, enCen, maxQV, maxQC, lostTicks; final double tps, targetTps;
+        final int carsOn, qVic, qCen, rab, rabCap, bnSeg; final String bnName; final double[] segD; final boolean[] red;
+        final JamTracker.Report jams;
+        Snapshot(VicBarcelonaTrafficSim s) {
+            jams = new JamTracker.Report(s.jamTracker);
+            tick = s.tickNo; simSec = s.simSec; tps = s.tps; targetTps = 1000.0 / s.tp.tickMs(); lostTicks = s.lostTicks; exGran = s.exGran; exBcn = s.exBcn; enVic = s.enVic; enCen = s.enCen;
+            maxQV = s.maxQV; maxQC = s.maxQC; carsOn = s.carsOn; qVic = s.qvLen; qCen = s.qcLen;
+            rab = s.rabCars.size(); rabCap = s.tp.rabCap(); bnSeg = s.bnSeg; bnName = s.bnName; segD = s.segD.clone();
+            red = new boolean[s.lights.size()]; for (int i = 0; i < red.length; i++) red[i] = s.tp.lightsOn() && s.lights.get(i).red;
+        }
+    }
+
+    // Telemetria por tick en un fichero columnar mapeado en memoria, solo append.
+    // Cabecera little-endian de HEADER bytes: magic, version, nCols, BLOCK_ROWS, filas (se publica
+    // con release tras cada fila) y por columna nombre[24] + tipo ('J','I','F','B') + ancho.
+    // Los datos van en bloques de BLOCK_ROWS filas; dentro del bloque cada columna es un array
+    // contiguo de primitivas, asi un lector puede mapear el fichero mientras la simulacion escribe.
+    static final class Telemetry implements Closeable {
+        static final long MAGIC = 0x314c45544d495354L; // "TSIMTEL1"
+        static final int HEADER = 4096, BLOCK_ROWS = 4096, ROWS_AT = 24, COLS_AT = 64, COL_DESC = 32;
+        static final VarHandle LONG_LE = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+        final FileChannel ch; final MappedByteBuffer head; final int[] width, colOff; final int blockBytes;
+        MappedByteBuffer block; long rows;
+
+        Telemetry(Path file, VicBarcelonaTrafficSim s) throws IOException {
+            List<String> names = new ArrayList<>(); List<Character> types = new ArrayList<>();
+            for (String n : new String[]{"tick", "t_ms", "exGran", "exBcn"}) { names.add(n); types.add('J'); }
+            for (String n : new String[]{"carsOn", "qVic", "qCen", "rabCars", "jams"}) { names.add(n); types.add('I'); }
+            names.add("jamKmh"); types.add('F');
+            for (int i = 0; i < s.segD.length; i++) { names.add("segD" + i); types.add('F'); }
+            for (Light l : s.lights) { names.add("red:" + l.name); types.add('B'); }
+            int n = names.size(); width = new int[n]; colOff = new int[n];
+            if (COLS_AT + n * COL_DESC > HEADER) throw new IllegalStateException("demasiadas columnas: " + n);
+            int row = 0;
+            for (int c = 0; c < n; c++) {
+                char t = types.get(c); width[c] = t == 'J' ? 8 : t == 'B' ? 1 : 4; colOff[c] = row; row += width[c];
+            }
+            blockBytes = row * BLOCK_ROWS;
+            ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                                  StandardOpenOption.READ, StandardOpenOption.WRITE);
+            head = ch.map(FileChannel.MapMode.READ_WRITE, 0, HEADER);
+            head.order(ByteOrder.LITTLE_ENDIAN);
+            head.putLong(0, MAGIC).putInt(8, 1).putInt(12, n).putInt(16, BLOCK_ROWS);
+            for (int c = 0; c < n; c++) {
+                byte[] nb = names.get(c).getBytes(StandardCharsets.US_ASCII);
+                int at = COLS_AT + c * COL_DESC;
+                for (int k = 0; k < 24; k++) head.put(at + k, k < nb.length ? nb[k] : 0);
+                head.put(at + 24, (byte) (char) types.get(c)).put(at + 25, (byte) width[c]);
+            }
+            LONG_LE.setRelease(head, ROWS_AT, 0L);
+        }
+
+        // Se llama dentro de tick(): sin reservas de memoria salvo al mapear un bloque nuevo
+        void append(VicBarcelonaTrafficSim s) {
+            int r = (int) (rows % BLOCK_ROWS);
+            if (r == 0) try {
+                block = ch.map(FileChannel.MapMode.READ_WRITE, HEADER + (rows / BLOCK_ROWS) * (long) blockBytes, blockBytes);
+                block.order(ByteOrder.LITTLE_ENDIAN);
+            } catch (IOException e) { throw new UncheckedIOException(e); }
+            int c = 0;
+            putJ(c++, r, s.tickNo); putJ(c++, r, s.simMs); putJ(c++, r, s.exGran); putJ(c++, r, s.exBcn);
+            putI(c++, r, s.carsOn); putI(c++, r, s.qvLen); putI(c++, r, s.qcLen); putI(c++, r, s.rabCars.size());
+            putI(c++, r, s.jamTracker.jams.size()); block.putFloat(colOff[c++] * BLOCK_ROWS + r * 4, (float) maxJamKmh(s.jamTracker));
+            for (int i = 0; i < s.segD.length; i++) block.putFloat(colOff[c++] * BLOCK_ROWS + r * 4, (float) s.segD[i]);
+            for (int i = 0; i < s.lights.size(); i++) block.put(colOff[c++] * BLOCK_ROWS + r, (byte) (s.tp.lightsOn() && s.lights.get(i).red ? 1 : 0));
+            LONG_LE.setRelease(head, ROWS_AT, ++rows);
+        }
+
+        static double maxJamKmh(JamTracker t) { double mx = 0; for (JamTracker.Jam j : t.jams) mx = Math.max(mx, j.speedKmh); return mx; }
+
+        void putJ(int c, int r, long v) { block.putLong(colOff[c] * BLOCK_ROWS + r * 8, v); }
+        void putI(int c, int r, int v)  { block.putInt(colOff[c] * BLOCK_ROWS + r * 4, v); }
+
+        @Override public void close() throws IOException {
+            if (block != null) block.force();
+            head.force(); ch.close();
+        }
+    }
+
+    // Grabacion de la partida (-Dsim.record=fichero): cada KEY_EVERY ticks un keyframe completo y,
+    // entre medias, solo las celdas, escalares y ocupantes de la rotonda que han cambiado.
+    // Cada celda se codifica como id<<2 | frenando | quiereSalir<<1 (0 = vacia).
+    // Registros (ints big-endian): KEY  = [1, frame, celdas..., escalares..., nRab, ids...]
+    //                              DELTA= [2, frame, n, (celda, codigo)*, m, (escalar, valor)*, nRab|-1, ids...]
+    static final int REC_MAGIC = 0x5452504c, KEY_EVERY = 128, CELLS = LANES * ROAD_LEN;
+    static final int S_TMS = 0, S_QV = 1, S_QC = 2, S_MAXQV = 3, S_MAXQC = 4, S_ENVIC = 5, S_ENCEN = 6, S_EXGRAN = 7,
+                     S_EXBCN = 8, S_RABCAP = 9, S_FLAGS = 10, S_VIC = 11, S_CEN = 12, S_GRAN = 13, S_BCN = 14,
+                     S_RABEXIT = 15, S_PCT = 16, N_SCAL = 17;
+
+    static final class Recorder implements Closeable {
+        final DataOutputStream out;
+        final int[] cells = new int[CELLS], prevCells = new int[CELLS], scal = new int[N_SCAL], prevScal = new int[N_SCAL];
+        int[] rab = new int[64], prevRab = new int[64]; int nRab, prevNRab; int frame;
+
+        Recorder(Path file) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16));
+            out.writeInt(REC_MAGIC); out.writeInt(1); out.writeInt(LANES); out.writeInt(ROAD_LEN); out.writeInt(N_SCAL);
+        }
+
+        void capture(VicBarcelonaTrafficSim s) throws IOException {
+            encode(s, cells, scal);
+            synchronized (s.rabCars) {
+                nRab = s.rabCars.size();
+                if (nRab > rab.length) { rab = Arrays.copyOf(rab, nRab * 2); prevRab = Arrays.copyOf(prevRab, nRab * 2); }
+                for (int k = 0; k < nRab; k++) rab[k] = s.rabCars.get(k).id;
+            }
+            if (frame % KEY_EVERY == 0) {
+                out.writeInt(1); out.writeInt(frame);
+                for (int v : cells) out.writeInt(v);
+                for (int v : scal) out.writeInt(v);
+                out.writeInt(nRab); for (int k = 0; k < nRab; k++) out.writeInt(rab[k]);
+            } else {
+                out.writeInt(2); out.writeInt(frame);
+                int n = 0; for (int k = 0; k < CELLS; k++) if (cells[k] != prevCells[k]) n++;
+                out.writeInt(n); for (int k = 0; k < CELLS; k++) if (cells[k] != prevCells[k]) { out.writeInt(k); out.writeInt(cells[k]); }
+                n = 0; for (int k = 0; k < N_SCAL; k++) if (scal[k] != prevScal[k]) n++;
+                out.writeInt(n); for (int k = 0; k < N_SCAL; k++) if (scal[k] != prevScal[k]) { out.writeInt(k); out.writeInt(scal[k]); }
+                if (nRab == prevNRab && Arrays.equals(rab, 0, nRab, prevRab, 0, nRab)) out.writeInt(-1);
+                else { out.writeInt(nRab); for (int k = 0; k < nRab; k++) out.writeInt(rab[k]); }
+            }
+            System.arraycopy(cells, 0, prevCells, 0, CELLS); System.arraycopy(scal, 0, prevScal, 0, N_SCAL);
+            System.arraycopy(rab, 0, prevRab, 0, nRab); prevNRab = nRab;
+            frame++;
+        }
+
+        @Override public void close() throws IOException { out.close(); }
+    }
+
+    // Celdas y escalares de un tick con la codificacion de la grabacion (la comparten Recorder y LiveView)
+    static void encode(VicBarcelonaTrafficSim s, int[] cells, int[] scal) {
+        for (int l = 0; l < LANES; l++) for (int i = 0; i < ROAD_LEN; i++) {
+            Car c = s.road[l][i];
+            cells[l * ROAD_LEN + i] = c == null ? 0 : c.id << 2 | (c.braking ? 1 : 0) | (c.wantsExit ? 2 : 0);
+        }
+        Params p = s.tp;
+        int flags = (p.rabOn() ? 1 : 0) | (p.lightsOn() ? 2 : 0);
+        for (int k = 0; k < s.lights.size(); k++) if (s.lights.get(k).red) flags |= 4 << k;
+        scal[S_TMS] = (int) s.simMs; scal[S_QV] = s.qvLen; scal[S_QC] = s.qcLen;
+        scal[S_MAXQV] = (int) s.maxQV; scal[S_MAXQC] = (int) s.maxQC; scal[S_ENVIC] = (int) s.enVic; scal[S_ENCEN] = (int) s.enCen;
+        scal[S_EXGRAN] = (int) s.exGran; scal[S_EXBCN] = (int) s.exBcn; scal[S_RABCAP] = p.rabCap(); scal[S_FLAGS] = flags;
+        scal[S_VIC] = p.entryVic(); scal[S_CEN] = p.entryCen(); scal[S_GRAN] = p.exitGran(); scal[S_BCN] = p.exitBcn();
+        scal[S_RABEXIT] = p.rabExit(); scal[S_PCT] = p.pctExit();
+    }
+
+    // Estado en vivo para visores externos (-Dsim.live=fichero): un unico frame mapeado en memoria que
+    // tick() reescribe en su sitio, con las celdas y escalares codificados como en la grabacion.
+    // Cabecera little-endian: magic, version, LANES, ROAD_LEN, N_SCAL, RAB_MAX y en SEQ_AT la version
+    // del seqlock, impar mientras se escribe. El lector lee seq (acquire), copia lo que quiera y vuelve
+    // a leer seq: si ha cambiado o era impar, repite hasta POLL_SPINS veces y si no lo deja para el
+    // siguiente frame (un escritor muerto a medias deja seq impar para siempre). La simulacion nunca
+    // espera a ningun lector.
+    // Cuerpo en BODY: tick (long), escalares[N_SCAL], nRab, ids[RAB_MAX], celdas[CELLS].
+    static final class LiveView implements Closeable {
+        static final long MAGIC = 0x31564c4c4d495354L; // "TSIMLLV1"
+        static final int SEQ_AT = 64, BODY = 128, RAB_MAX = 64, POLL_SPINS = 1000;
+        static final int TICK_AT = BODY, SCAL_AT = BODY + 8, NRAB_AT = SCAL_AT + N_SCAL * 4, RAB_AT = NRAB_AT + 4,
+                         CELLS_AT = RAB_AT + RAB_MAX * 4, SIZE = CELLS_AT + CELLS * 4;
+        static final VarHandle SEQ = Telemetry.LONG_LE;
+        final FileChannel ch; final MappedByteBuffer buf;
+        final int[] cells = new int[CELLS], scal = new int[N_SCAL], prev = new int[CELLS];
+        long seq;
+
+        LiveView(Path file) throws IOException {
+            ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            buf = ch.map(FileChannel.MapMode.READ_WRITE, 0, SIZE);
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            SEQ.setRelease(buf, SEQ_AT, 1L);
+            for (int k = BODY; k < SIZE; k += 4) buf.putInt(k, 0);
+            buf.putLong(0, MAGIC).putInt(8, 1).putInt(12, LANES).putInt(16, ROAD_LEN).putInt(20, N_SCAL).putInt(24, RAB_MAX);
+            seq = 2;
+            SEQ.setRelease(buf, SEQ_AT, seq); // frame vacio valido: un visor que llega antes del primer tick no espera
+        }
+
+        // Dentro de tick(): solo se escriben las celdas que han cambiado desde el frame anterior
+        void publish(VicBarcelonaTrafficSim s) {
+            encode(s, cells, scal);
+            SEQ.setOpaque(buf, SEQ_AT, seq | 1);
+            VarHandle.storeStoreFence();
+            buf.putLong(TICK_AT, s.tickNo);
+            for (int k = 0; k < N_SCAL; k++) buf.putInt(SCAL_AT + k * 4, scal[k]);
+            synchronized (s.rabCars) {
+                int n = s.rabCars.size(); buf.putInt(NRAB_AT, n);
+                for (int k = 0; k < Math.min(n, RAB_MAX); k++) buf.putInt(RAB_AT + k * 4, s.rabCars.get(k).id);
+            }
+            for (int k = 0; k < CELLS; k++) if (cells[k] != prev[k]) { buf.putInt(CELLS_AT + k * 4, cells[k]); prev[k] = cells[k]; }
+            seq = (seq | 1) + 1;
+            SEQ.setRelease(buf, SEQ_AT, seq);
+        }
+
+        @Override public void close() throws IOException { ch.close(); }
+
+        // Lado del visor: mapea el fichero en solo lectura y copia un frame coherente
+        static final class Reader implements Closeable {
+            final FileChannel ch; final MappedByteBuffer buf;
+            final int[] cells = new int[CELLS], scal = new int[N_SCAL], rab = new int[RAB_MAX];
+            int nRab; long tick, seq, retries;
+
+            Reader(Path file) throws IOException {
+                ch = FileChannel.open(file, StandardOpenOption.READ);
+                if (ch.size() < SIZE) { ch.close(); throw new IOException("estado en vivo incompleto: " + file); }
+                buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, SIZE);
+                buf.order(ByteOrder.LITTLE_ENDIAN);
+                if (buf.getLong(0) != MAGIC || buf.getInt(16) != ROAD_LEN || buf.getInt(20) != N_SCAL) { ch.close(); throw new IOException("no es un estado en vivo compatible"); }
+            }
+
+            // false si no hay frame nuevo desde la ultima lectura o no se ha podido copiar uno coherente
+            boolean poll() {
+                for (int spin = 0; spin < POLL_SPINS; spin++) {
+                    long s1 = (long) SEQ.getAcquire(buf, SEQ_AT);
+                    if (s1 == seq) return false;
+                    if ((s1 & 1) == 0) {
+                        long t = buf.getLong(TICK_AT);
+                        for (int k = 0; k < N_SCAL; k++) scal[k] = buf.getInt(SCAL_AT + k * 4);
+                        int n = buf.getInt(NRAB_AT);
+                        for (int k = 0; k < Math.min(Math.max(n, 0), RAB_MAX); k++) rab[k] = buf.getInt(RAB_AT + k * 4);
+                        for (int k = 0; k < CELLS; k++) cells[k] = buf.getInt(CELLS_AT + k * 4);
+                        VarHandle.loadLoadFence();
+                        if ((long) SEQ.getOpaque(buf, SEQ_AT) == s1) { tick = t; nRab = Math.min(n, RAB_MAX); seq = s1; return true; }
+                    }
+                    retries++; Thread.onSpinWait();
+                }
+                return false;
+            }
+
+            @Override public void close() throws IOException { ch.close(); }
+        }
+    }
+
+
+    // Reproduce una grabacion sin volver a simular: indexa los registros al abrir y para ir a un
+    // instante busca (binaria) el frame y su keyframe y aplica como mucho KEY_EVERY-1 deltas
+    static final class Replay {
+        final IntBuffer data; final int frames; final int[] off, tMs;
+        final int[] cells = new int[CELLS], scal = new int[N_SCAL]; int[] rab = new int[64]; int nRab;
+
+        Replay(Path file) throws IOException {
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+                data = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size() & ~3L).asIntBuffer();
+            }
+            if (data.limit() < 5) throw new IOException("grabacion vacia o sin cabecera completa");
+            if (data.get(0) != REC_MAGIC || data.get(3) != ROAD_LEN || data.get(4) != N_SCAL) throw new IOException("grabacion no compatible");
+            int[] o = new int[1024], t = new int[1024]; int n = 0, p = 5, lastT = 0, lim = data.limit();
+            while (p + 2 <= lim) {
+                int start = p, tag = data.get(p), q = p + 2;
+                if (tag == 1) {
+                    if (q + CELLS + N_SCAL >= lim) break;
+                    lastT = data.get(q + CELLS + S_TMS); q += CELLS + N_SCAL; q += 1 + Math.max(0, q < lim ? data.get(q) : 0); }
+                else if (tag == 2) {
+                    if (q >= lim) break;
+                    q += 1 + 2 * data.get(q); if (q >= lim) break;
+                    int m = data.get(q); for (int k = 0; k < m && q + 2 + 2 * k < lim; k++) if (data.get(q + 1 + 2 * k) == S_TMS) lastT = data.get(q + 2 + 2 * k);
+                    q += 1 + 2 * m; if (q >= lim) break;
+                    q += 1 + Math.max(0, data.get(q));
+                } else break;
+                if (q > lim) break; // registro cortado: la grabacion sigue abierta
+                if (n == o.length) { o = Arrays.copyOf(o, n * 2); t = Arrays.copyOf(t, n * 2); }
+                o[n] = start; t[n] = lastT; n++; p = q;
+            }
+            frames = n; off = o; tMs = t;
+        }
+
+        // Primer frame con t >= ms (O(log n))
+        int frameAt(long ms) {
+            int lo = 0, hi = frames - 1;
+            while (lo < hi) { int mid = (lo + hi) >>> 1; if (tMs[mid] < ms) lo = mid + 1; else hi = mid; }
+            return lo;
+        }
+
+        long durationMs() { return frames == 0 ? 0 : tMs[frames - 1]; }
+
+        void seek(int frame, VicBarcelonaTrafficSim v) {
+            if (frames == 0) return;
+            frame = Math.max(0, Math.min(frames - 1, frame));
+            for (int f = frame - frame % KEY_EVERY; f <= frame; f++) decode(off[f]);
+            v.show(cells, scal, rab, nRab);
+        }
+
+        void decode(int p) {
+            int tag = data.get(p); p += 2;
+            if (tag == 1) {
+                data.position(p); data.get(cells); data.get(scal); p += CELLS + N_SCAL;
+                readRab(p);
+            } else {
+                for (int n = data.get(p++); n > 0; n--, p += 2) cells[data.get(p)] = data.get(p + 1);
+                for (int n = data.get(p++); n > 0; n--, p += 2) scal[data.get(p)] = data.get(p + 1);
+                readRab(p);
+            }
+        }
+
+        void readRab(int p) {
+            int n = data.get(p); if (n < 0) return;
+            if (n > rab.length) rab = new int[n * 2];
+            for (int k = 0; k < n; k++) rab[k] = data.get(p + 1 + k);
+            nRab = n;
+        }
+    }
+
+    // Historico multirresolucion de memoria acotada: muestras crudas cada 600 ms y agregados de
+    // 10 s, 1 min y 10 min con min/max/media por metrica. Cada nivel es un anillo de CAP cubetas
+    // indexadas por numero de cubeta (t / RES), asi que un dia de simulacion ocupa lo mismo que un minuto.
+    static final class Series {
+        static final String[] NAMES = {"coches", "colaVic", "colaCen", "rotonda"};
+        static final long[] RES = {600, 10_000, 60_000, 600_000};
+        static final int CAP = 1024, M = NAMES.length, T = RES.length;
+        final double[][][] min = new double[T][M][CAP], max = new double[T][M][CAP], sum = new double[T][M][CAP];
+        final int[][] cnt = new int[T][CAP];
+        final long[] cur = new long[T]; final int[] filled = new int[T];
+        final double[] sample = new double[M];
+
+        Series() { clear(); }
+
+        void clear() { Arrays.fill(cur, -1); Arrays.fill(filled, 0); }
+
+        // Agrega la muestra de 'sample' en el instante t (ms) a todos los niveles
+        void add(long t) {
+            if (cur[0] >= 0 && t / RES[0] < cur[0]) clear(); // el reloj ha vuelto atras (reinicio)
+            for (int k = 0; k < T; k++) {
+                long b = t / RES[k]; int slot = (int) (b % CAP);
+                if (b != cur[k]) {
+                    filled[k] = cur[k] < 0 ? 1 : (int) Math.min(CAP, filled[k] + (b - cur[k]));
+                    for (long e = Math.max(cur[k] + 1, b - CAP + 1); e < b; e++) cnt[k][(int) (e % CAP)] = 0; // huecos
+                    cur[k] = b; cnt[k][slot] = 0;
+                }
+                for (int m = 0; m < M; m++) {
+                    double v = sample[m];
+                    if (cnt[k][slot] == 0) { min[k][m][slot] = max[k][m][slot] = sum[k][m][slot] = v; }
+                    else { min[k][m][slot] = Math.min(min[k][m][slot], v); max[k][m][slot] = Math.max(max[k][m][slot], v); sum[k][m][slot] += v; }
+                }
+                cnt[k][slot]++;
+            }
+        }
+
+        // Nivel mas fino que cubre 'span' ms con como mucho ~2 cubetas por pixel
+        int tierFor(long span, int px) {
+            for (int k = 0; k < T; k++) if (span / RES[k] <= Math.min(CAP, 2L * Math.max(1, px))) return k;
+            return T - 1;
+        }
+
+        int bytes() { int n = 4 + T * 12; for (int k = 0; k < T; k++) n += filled[k] * (4 + M * 24); return n; }
+
+        void write(ByteBuffer b) {
+            b.putInt(T);
+            for (int k = 0; k < T; k++) {
+                b.putLong(cur[k]).putInt(filled[k]);
+                for (long bn = cur[k] - filled[k] + 1; bn <= cur[k]; bn++) {
+                    int slot = (int) (bn % CAP); b.putInt(cnt[k][slot]);
+                    for (int m = 0; m < M; m++) b.putDouble(min[k][m][slot]).putDouble(max[k][m][slot]).putDouble(sum[k][m][slot]);
+                }
+            }
+        }
+
+        void read(ByteBuffer b) throws IOException {
+            if (b.getInt() != T) throw new IOException("historico no compatible");
+            for (int k = 0; k < T; k++) {
+                cur[k] = b.getLong(); filled[k] = b.getInt();
+                if (filled[k] < 0 || filled[k] > CAP || filled[k] > 0 && cur[k] < filled[k] - 1) throw new IOException("historico corrupto");
+                for (long bn = cur[k] - filled[k] + 1; bn <= cur[k]; bn++) {
+                    int slot = (int) (bn % CAP); cnt[k][slot] = b.getInt();
+                    for (int m = 0; m < M; m++) { min[k][m][slot] = b.getDouble(); max[k][m][slot] = b.getDouble(); sum[k][m][slot] = b.getDouble(); }
+                }
+            }
+        }
+
+        void copyFrom(Series o) {
+            System.arraycopy(o.cur, 0, cur, 0, T); System.arraycopy(o.filled, 0, filled, 0, T);
+            for (int k = 0; k < T; k++) {
+                System.arraycopy(o.cnt[k], 0, cnt[k], 0, CAP);
+                for (int m = 0; m < M; m++) {
+                    System.arraycopy(o.min[k][m], 0, min[k][m], 0, CAP); System.arraycopy(o.max[k][m], 0, max[k][m], 0, CAP);
+                    System.arraycopy(o.sum[k][m], 0, sum[k][m], 0, CAP);
+                }
+            }
+        }
+    }
+
+    // Anillo de ocupacion por tick para el diagrama espacio-tiempo: un bit por celda y carril
+    // (ocupada / frenando), 2 * LANES * WPL longs por tick en vez de copias de objetos Car
+    static final class OccRing {
+        static final int RING = 4096, WPL = (ROAD_LEN + 63) / 64, WORDS = LANES * WPL;
+        final long[] occ = new long[RING * WORDS], brk = new long[RING * WORDS];
+        long head; // ticks grabados
+
+        void capture(Car[][] road) {
+            int base = (int) (head % RING) * WORDS;
+            Arrays.fill(occ, base, base + WORDS, 0L); Arrays.fill(brk, base, base + WORDS, 0L);
+            for (int l = 0; l < LANES; l++) for (int i = 0; i < ROAD_LEN; i++) {
+                Car c = road[l][i]; if (c == null) continue;
+                int w = base + l * WPL + (i >>> 6); long bit = 1L << i;
+                occ[w] |= bit; if (c.braking) brk[w] |= bit;
+            }
+            head++;
+        }
+
+        // Cuenta ocupadas y frenando en [p0, p1) de todos los carriles para el tick t
+        int count(long[] bits, long t, int p0, int p1) {
+            int base = (int) (t % RING) * WORDS, n = 0;
+            for (int l = 0; l < LANES; l++) for (int i = p0; i < p1; i++) if ((bits[base + l * WPL + (i >>> 6)] & (1L << i)) != 0) n++;
+            return n;
+        }
+    }
+
+    // Detector incremental de atascos: EWMA de densidad y de velocidad (fraccion de coches que
+    // avanzan) por segmento; un atasco es un tramo contiguo de segmentos densos y lentos. Los tramos
+    // se emparejan con los del tick anterior por solape, asi se sigue cada frente en el tiempo
+    // con coste O(segmentos) por tick.
+    static final class JamTracker {
+        static final double ALPHA = 0.15, D_ON = 0.35, V_ON = 0.4, SEG_KM = SEG_SIZE * 70.0 / ROAD_LEN;
+
+        static final class Jam {
+            int id, head, tail, head0; long start, end, tailT; double speedKmh, peak; boolean moving; String zone;
+        }
+
+        // Resultado inmutable para exportar (Snapshot, /metrics, telemetria)
+        static final class Report {
+            final int jams; final double maxSpeedKmh; final int[] head, tail; final double[] speed; final boolean[] moving;
+            final String[] zones; final long[] zoneJams, zoneMs;
+            Report(JamTracker t) {
+                int n = t.jams.size(); jams = n; head = new int[n]; tail = new int[n]; speed = new double[n]; moving = new boolean[n];
+                double mx = 0;
+                for (int i = 0; i < n; i++) {
+                    Jam j = t.jams.get(i); head[i] = j.head; tail[i] = j.tail; speed[i] = j.speedKmh; moving[i] = j.moving;
+                    mx = Math.max(mx, j.speedKmh);
+                }
+                maxSpeedKmh = mx;
+                int z = t.perZone.size(); zones = new String[z]; zoneJams = new long[z]; zoneMs = new long[z];
+                int i = 0;
+                for (Map.Entry<String, long[]> e : t.perZone.entrySet()) {
+                    zones[i] = e.getKey(); zoneJams[i] = e.getValue()[0]; zoneMs[i] = e.getValue()[1];
+                    for (Jam j : t.jams) if (j.zone.equals(zones[i])) zoneMs[i] += t.last - j.start; // atascos en curso
+                    i++;
+                }
+            }
+        }
+
+        final int n = ROAD_LEN / SEG_SIZE + 1;
+        final double[] ed = new double[n], ev = new double[n];
+        final int[] owner = new int[n];
+        List<Jam> jams = new ArrayList<>(), next = new ArrayList<>();
+        final List<Jam> started = new ArrayList<>(), ended = new ArrayList<>(); // del ultimo update(), para JFR
+        final Map<String, long[]> perZone = new LinkedHashMap<>(); // zona -> {atascos, ms acumulados}
+        long last = -1; int nextId = 1;
+
+        // Los atascos en curso se cierran en perZone al instante del ultimo tick: sus contadores nunca bajan
+        void reset() {
+            for (Jam j : jams) { long[] z = perZone.computeIfAbsent(j.zone, k -> new long[2]); z[0]++; z[1] += last - j.start; j.end = last; }
+            ended.addAll(jams);
+            Arrays.fill(ed, 0); Arrays.fill(ev, 1); Arrays.fill(owner, -1); jams.clear();
+        }
+
+        void update(double[] dens, double[] speed, long t) {
+            started.clear(); ended.clear();
+            if (last < 0 || t < last) reset();
+            last = t;
+            for (int s = 0; s < n; s++) { ed[s] += ALPHA * (dens[s] - ed[s]); ev[s] += ALPHA * (speed[s] - ev[s]); }
+            next.clear();
+            for (int s = 0; s < n; ) {
+                if (!jammed(s)) { s++; continue; }
+                int a = s; double pk = 0;
+                while (s < n && jammed(s)) pk = Math.max(pk, ed[s++]);
+                int b = s - 1;
+                Jam j = null;
+                for (int k = a; k <= b && j == null; k++) if (owner[k] >= 0 && !next.contains(jams.get(owner[k]))) j = jams.get(owner[k]);
+                if (j == null) {
+                    j = new Jam(); j.id = nextId++; j.start = t; j.head0 = b; j.tail = a; j.tailT = t; j.zone = zoneName(b); started.add(j);
+                } else if (a != j.tail) {
+                    long dt = t - j.tailT;
+                    if (dt > 0) j.speedKmh += 0.3 * ((j.tail - a) * SEG_KM / (dt / 3.6e6) - j.speedKmh); // >0: retrocede
+                    j.tail = a; j.tailT = t;
+                }
+                j.head = b; j.peak = pk; j.moving = j.head0 - b >= 2;
+                next.add(j);
+            }
+            for (Jam j : jams) if (!next.contains(j)) {
+                long[] z = perZone.computeIfAbsent(j.zone, k -> new long[2]); z[0]++; z[1] += t - j.start;
+                j.end = t; ended.add(j);
+            }
+            List<Jam> tmp = jams; jams = next; next = tmp;
+            Arrays.fill(owner, -1);
+            for (int i = 0; i < jams.size(); i++) for (int k = jams.get(i).tail; k <= jams.get(i).head; k++) owner[k] = i;
+        }
+
+        boolean jammed(int s) { return ed[s] > D_ON && ev[s] < V_ON; }
+
+        // Atasco mas severo (mayor densidad pico); null si no hay
+        Jam worst() { Jam w = null; for (Jam j : jams) if (w == null || j.peak > w.peak) w = j; return w; }
+    }
+
+    static String zoneName(int seg) {
+        int pos = seg * SEG_SIZE;
+        if (pos >= X_GRANOLLERS - 12 && pos <= X_GRANOLLERS + 4) return "Rotonda Granollers";
+        if (pos >= X_BARCELONA - 8) return "Salida Barcelona";
+        if (pos >= E_CENTELLES - 4 && pos <= E_CENTELLES + 8) return "Entrada Centelles";
+        return "Tramo km " + (pos * 70 / ROAD_LEN);
+    }
+
+    // Semaphore justo cuyo numero de permisos sigue al slider de capacidad
+    static final class Permits extends Semaphore {
+        private static final long serialVersionUID = 1L;
+        Permits(int n) { super(n, true); }
+        void reduce(int n) { reducePermits(n); }
+    }
+
+    // ── Modo hilos reales: un hilo por coche con primitivas de java.util.concurrent ──
+    // Mismo trazado que tick(), pero cada coche es un hilo (virtual si el JDK los trae; si no, de plataforma
+    // con un tope MAX_PLATFORM) que adquiere de verdad un permiso por celda, un Semaphore(rabCap) para la
+    // rotonda y el ReentrantLock de cada semaforo, que su hilo controlador retiene mientras esta en rojo.
+    // Sin 'gap': una celda = un permiso. Las esperas medidas se pintan junto a las simuladas (simRab...).
+    static final class CarThreads implements Closeable {
+        static final int MAX_PLATFORM = 2000, CTL_MS = 80;
+        final VicBarcelonaTrafficSim sim;
+        final ThreadFactory factory; final boolean virtual;
+        final Semaphore slots; // solo con hilos de plataforma
+        final ConcurrentLinkedQueue<Runnable> backlog = new ConcurrentLinkedQueue<>();
+        final Semaphore[][] cells = new Semaphore[LANES][ROAD_LEN];
+        final Permits rab; int rabPermits;
+        final ReentrantLock[] lightLocks;
+        final Semaphore inVic = new Semaphore(1, true), inCen = new Semaphore(1, true);
+        final Semaphore gBcn = new Semaphore(0), gGran = new Semaphore(0), gRab = new Semaphore(0);
+        final Bucket bBcn = new Bucket(0), bGran = new Bucket(0), bRab = new Bucket(0);
+        final ScheduledExecutorService ctl;
+        final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        final Rng rng;
+        final AtomicInteger queued = new AtomicInteger(), onRoad = new AtomicInteger(), inRab = new AtomicInteger();
+        final LongAdder exBcn = new LongAdder(), exGran = new LongAdder();
+        final Hist wRab = new Hist(Hist.WAIT_US), wLight = new Hist(Hist.WAIT_US), wCell = new Hist(Hist.WAIT_US);
+        volatile boolean open = true;
+
+        CarThreads(VicBarcelonaTrafficSim sim) {
+            this.sim = sim; rng = new Rng(sim.seed ^ 0x7EA5L);
+            ThreadFactory vf = virtualFactory();
+            virtual = vf != null;
+            factory = virtual ? vf : r -> { Thread t = new Thread(r, "car"); t.setDaemon(true); return t; };
+            slots = virtual ? null : new Semaphore(MAX_PLATFORM);
+            for (Semaphore[] lane : cells) for (int i = 0; i < ROAD_LEN; i++) lane[i] = new Semaphore(1);
+            rab = new Permits(rabPermits = sim.cfg.get().rabCap());
+            lightLocks = new ReentrantLock[sim.lights.size()];
+            for (int k = 0; k < lightLocks.length; k++) {
+                ReentrantLock lk = lightLocks[k] = new ReentrantLock(); Light l = sim.lights.get(k);
+                Thread t = new Thread(() -> cycle(lk, l), "sim-light-" + l.name); t.setDaemon(true); t.start(); threads.add(t);
+            }
+            ctl = Executors.newSingleThreadScheduledExecutor(r -> { Thread t = new Thread(r, "sim-carthreads"); t.setDaemon(true); return t; });
+            ctl.scheduleAtFixedRate(this::control, 0, CTL_MS, TimeUnit.MILLISECONDS);
+        }
+
+        // Thread.ofVirtual() por reflexion: compila con JDK 17 y usa hilos virtuales donde existan
+        static ThreadFactory virtualFactory() {
+            try {
+                Class<?> builder = Class.forName("java.lang.Thread$Builder");
+                Object b = Thread.class.getMethod("ofVirtual").invoke(null);
+                b = builder.getMethod("name", String.class, long.class).invoke(b, "car-", 0L);
+                return (ThreadFactory) builder.getMethod("factory").invoke(b);
+            } catch (ReflectiveOperationException | RuntimeException e) { return null; }
+        }
+
+        // El controlador del semaforo retiene el lock durante el rojo: los coches se bloquean en lock() de verdad
+        void cycle(ReentrantLock lk, Light l) {
+            try {
+                while (open) {
+                    if (!sim.cfg.get().lightsOn()) { Thread.sleep(CTL_MS); continue; }
+                    lk.lock();
+                    try { Thread.sleep(l.redMs); } finally { lk.unlock(); }
+                    Thread.sleep(l.greenMs);
+                }
+            } catch (InterruptedException e) { /* cierre */ }
+        }
+
+        // Cada CTL_MS: capacidad de la rotonda en caliente, tokens de las salidas y llegadas (como los productores)
+        void control() {
+            if (!sim.running) return;
+            Params p = sim.cfg.get();
+            int d = p.rabCap() - rabPermits;
+            if (d > 0) rab.release(d); else if (d < 0) rab.reduce(-d);
+            rabPermits = p.rabCap();
+            bBcn.rate = p.exitBcn(); bGran.rate = p.exitGran(); bRab.rate = p.rabExit();
+            refill(bBcn, gBcn); refill(bGran, gGran); refill(bRab, gRab);
+            if (p.entryVic() > 0 && rng.nextDouble() < p.entryVic() / 750.0) spawn(E_VIC, p);
+            if (p.entryCen() > 0 && rng.nextDouble() < p.entryCen() / 750.0) spawn(E_CENTELLES, p);
+        }
+
+        static void refill(Bucket b, Semaphore gate) {
+            b.tick(CTL_MS);
+            while (gate.availablePermits() < 8 && b.consume()) gate.release();
+        }
+
+        // Prueba de carga: n coches de golpe en la entrada de Vic
+        void burst(int n) { Params p = sim.cfg.get(); for (int i = 0; i < n; i++) spawn(E_VIC, p); }
+
+        void spawn(int at, Params p) {
+            boolean we = rng.nextDouble() * 100 < p.pctExit();
+            queued.incrementAndGet();
+            Runnable car = () -> drive(at, we);
+            if (slots != null && !slots.tryAcquire()) { backlog.add(car); return; }
+            factory.newThread(() -> run(car)).start();
+        }
+
+        // Con hilos de plataforma cada hilo, al acabar su coche, recoge el siguiente del backlog
+        void run(Runnable car) {
+            Thread me = Thread.currentThread(); threads.add(me);
+            try { for (Runnable c = car; c != null && open; c = slots == null ? null : backlog.poll()) c.run(); }
+            finally { threads.remove(me); if (slots != null) slots.release(); }
+        }
+
+        void drive(int at, boolean wantsExit) {
+            long cellNs = 0, lightNs = 0; int lane = -1, pos = at;
+            Semaphore gate = at == E_VIC ? inVic : inCen;
+            try {
+                try { gate.acquire(); try { lane = claim(at); } finally { gate.release(); } }
+                finally { queued.decrementAndGet(); }
+                onRoad.incrementAndGet();
+                for (;;) {
+                    Params p = sim.cfg.get();
+                    Thread.sleep(p.tickMs());
+                    long t = System.nanoTime();
+                    if (pos >= X_BARCELONA) { gBcn.acquire(); cellNs += System.nanoTime() - t; exBcn.increment(); break; }
+                    if (wantsExit && pos >= X_GRANOLLERS - 3) {
+                        if (!p.rabOn()) { gGran.acquire(); cellNs += System.nanoTime() - t; exGran.increment(); break; }
+                        rab.acquire(); wRab.observe(System.nanoTime() - t);
+                        cells[lane][pos].release(); lane = -1; onRoad.decrementAndGet(); inRab.incrementAndGet();
+                        try { Thread.sleep(16L * p.tickMs()); gRab.tryAcquire(24L * p.tickMs(), TimeUnit.MILLISECONDS); }
+                        finally { rab.release(); inRab.decrementAndGet(); }
+                        exGran.increment(); break;
+                    }
+                    for (int k = 0; k < lightLocks.length; k++) if (sim.lights.get(k).pos == pos + 1) {
+                        lightLocks[k].lock(); lightLocks[k].unlock();
+                        long now = System.nanoTime(); lightNs += now - t; t = now;
+                    }
+                    lane = advance(lane, pos, p); pos++;
+                    cellNs += System.nanoTime() - t;
+                }
+                wCell.observe(cellNs); wLight.observe(lightNs);
+            } catch (InterruptedException e) { /* cierre */ }
+            finally { if (lane >= 0) { cells[lane][pos].release(); onRoad.decrementAndGet(); } }
+        }
+
+        // Solo el primero de la cola FIFO de cada entrada busca hueco; el resto espera en gate.acquire()
+        int claim(int at) throws InterruptedException {
+            for (;;) {
+                for (int l = 0; l < LANES; l++) if (cells[l][at].tryAcquire()) return l;
+                Thread.sleep(sim.cfg.get().tickMs());
+            }
+        }
+
+        // Avanza una celda: su carril, si no un vecino, y si todo esta ocupado espera en el suyo
+        int advance(int lane, int pos, Params p) throws InterruptedException {
+            for (;;) {
+                int to = -1;
+                if (cells[lane][pos + 1].tryAcquire()) to = lane;
+                else for (int nl = lane - 1; nl <= lane + 1 && to < 0; nl += 2) if (nl >= 0 && nl < LANES && cells[nl][pos + 1].tryAcquire()) to = nl;
+                if (to < 0 && cells[lane][pos + 1].tryAcquire(p.tickMs(), TimeUnit.MILLISECONDS)) to = lane;
+                if (to >= 0) { cells[lane][pos].release(); return to; }
+            }
+        }
+
+        int alive() { return threads.size() - lightLocks.length; }
+
+        @Override public void close() {
+            open = false; ctl.shutdownNow(); backlog.clear();
+            for (Thread t : threads) t.interrupt();
+        }
+    }
+
+    // ── Laboratorio executor: los sliders aplicados a carga real de la JVM ──
+    // Vic y Centelles son hilos productores que hacen execute() sobre el ThreadPoolExecutor de Barcelona
+    // (core/max como en el snippet "bcn" y LinkedBlockingQueue(1000) como cola): con la cola llena salta
+    // RejectedExecutionException y la tarea se pierde. El pct% de las tareas pasa ademas por la rotonda,
+    // un Semaphore(rabCap) con 60000/rabExit us de CPU dentro. Todo va LAB_SCALE veces mas rapido que la
+    // simulacion: N/min son N tareas cada 60 ms y el trabajo propio de Barcelona dura 60000/bcn us.
+    static final class WorkLab implements Closeable {
+        static final int LAB_SCALE = 1000, CTL_MS = 100, STAT_MS = 1000, QUEUE = 1000;
+        static final long[] LAT_US = {100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000, 500000, 1000000, 2500000, 5000000};
+        record Stats(double perSec, int queue, int maxQueue, int core, int max, int pool, int active, long rejected,
+                     double p50, double p95, double p99, double csWaitMs) {}
+        final VicBarcelonaTrafficSim sim;
+        final ThreadPoolExecutor bcn;
+        final Permits rab; int rabPermits;
+        final Thread[] producers;
+        final ScheduledExecutorService ctl;
+        final Rng rng;
+        final LongAdder done = new LongAdder(), rejected = new LongAdder();
+        volatile Hist lat = new Hist(LAT_US), csWait = new Hist(LAT_US);
+        volatile Stats stats = new Stats(0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+        volatile boolean open = true;
+        int maxQueue; long lastDone, lastAt = System.nanoTime();
+
+        WorkLab(VicBarcelonaTrafficSim sim) {
+            this.sim = sim; rng = new Rng(sim.seed ^ 0x1AB5L);
+            Params p = sim.cfg.get();
+            AtomicInteger n = new AtomicInteger();
+            bcn = new ThreadPoolExecutor(Math.max(1, p.exitBcn() / 10), Math.max(2, p.exitBcn() / 5), 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(QUEUE), r -> { Thread t = new Thread(r, "lab-bcn-" + n.incrementAndGet()); t.setDaemon(true); return t; });
+            rab = new Permits(rabPermits = p.rabCap());
+            producers = new Thread[]{ new Thread(() -> produce(true), "lab-vic"), new Thread(() -> produce(false), "lab-cen") };
+            for (Thread t : producers) { t.setDaemon(true); t.start(); }
+            ctl = Executors.newSingleThreadScheduledExecutor(r -> { Thread t = new Thread(r, "lab-ctl"); t.setDaemon(true); return t; });
+            ctl.scheduleAtFixedRate(this::control, CTL_MS, CTL_MS, TimeUnit.MILLISECONDS);
+        }
+
+        void produce(boolean vic) {
+            long next = System.nanoTime();
+            while (open) {
+                Params p = sim.cfg.get(); int rate = vic ? p.entryVic() : p.entryCen();
+                if (rate == 0 || !sim.running) { LockSupport.parkNanos(50_000_000L); next = System.nanoTime(); continue; }
+                next += 60_000_000_000L / ((long) rate * LAB_SCALE);
+                long d = next - System.nanoTime();
+                if (d > 0) LockSupport.parkNanos(d); else if (d < -100_000_000L) next = System.nanoTime(); // no acumular mas de 100 ms
+                boolean crit = p.rabOn() && rng.nextDouble() * 100 < p.pctExit();
+                long born = System.nanoTime();
+                try { bcn.execute(() -> work(born, crit)); } catch (RejectedExecutionException e) { rejected.increment(); }
+            }
+        }
+
+        void work(long born, boolean crit) {
+            Params p = sim.cfg.get();
+            spin(60_000L / Math.max(1, p.exitBcn()));
+            if (crit) {
+                long t = System.nanoTime();
+                rab.acquireUninterruptibly();
+                csWait.observe(System.nanoTime() - t);
+                try { spin(60_000L / Math.max(1, p.rabExit())); } finally { rab.release(); }
+            }
+            lat.observe(System.nanoTime() - born); done.increment();
+        }
+
+        static void spin(long us) {
+            for (long end = System.nanoTime() + us * 1000; System.nanoTime() - end < 0; ) Thread.onSpinWait();
+        }
+
+        // Cada CTL_MS ajusta pool y semaforo a los sliders; cada STAT_MS publica Stats y empieza histogramas nuevos
+        void control() {
+            Params p = sim.cfg.get();
+            int core = Math.max(1, p.exitBcn() / 10), max = Math.max(2, p.exitBcn() / 5);
+            if (max < bcn.getCorePoolSize()) { bcn.setCorePoolSize(core); bcn.setMaximumPoolSize(max); }
+            else { bcn.setMaximumPoolSize(max); bcn.setCorePoolSize(core); }
+            int d = p.rabCap() - rabPermits;
+            if (d > 0) rab.release(d); else if (d < 0) rab.reduce(-d);
+            rabPermits = p.rabCap();
+            int q = bcn.getQueue().size(); maxQueue = Math.max(maxQueue, q);
+            long now = System.nanoTime();
+            if (now - lastAt < STAT_MS * 1_000_000L) return;
+            Hist l = lat, c = csWait; lat = new Hist(LAT_US); csWait = new Hist(LAT_US);
+            long k = done.sum();
+            stats = new Stats((k - lastDone) * 1e9 / (now - lastAt), q, maxQueue, core, max, bcn.getPoolSize(), bcn.getActiveCount(),
+                rejected.sum(), l.quantileMs(.5), l.quantileMs(.95), l.quantileMs(.99), c.meanMs());
+            lastDone = k; lastAt = now;
+        }
+
+        @Override public void close() {
+            open = false; ctl.shutdownNow(); bcn.shutdownNow();
+            for (Thread t : producers) t.interrupt();
+        }
+    }
+
+    // ── Contention real de la JVM (ThreadMXBean, -Dsim.probe=true) ────────
+    // Solo si se pide: getThreadInfo() detiene los hilos en un safepoint. Cada SAMPLE_MS mira en que monitor esta BLOCKED cada hilo sim-sched-* y el EDT (muestreo: sirve para
+    // repartir entre tick()/paintComponent, rabCars y otros) y cada WINDOW_MS publica los contadores exactos
+    // de blocked de cada grupo en ms por segundo. El waited de ThreadMXBean no sirve: casi todo es el hilo
+    // ocioso aparcado en la DelayedWorkQueue del executor o en EventQueue.getNextEvent, asi que la espera se
+    // estima tambien por muestreo, contando solo los hilos WAITING que no estan en una de esas dos colas
+    // (la pila se pide solo para esos hilos, en una segunda llamada).
+    static final class ContentionProbe {
+        static final int SAMPLE_MS = 100, WINDOW_MS = 1000, DIAG_MS = 50, DEPTH = 12;
+        static final String[] GROUPS = {"sched", "edt"}, MONITORS = {"tick", "rabCars", "otros"};
+        // blocked/waited en ms por segundo de reloj, por grupo; monitorMs estima el bloqueo por monitor
+        record Sample(double[] blockedMs, double[] waitedMs, double[] monitorMs) {
+            double blocked() { return blockedMs[0] + blockedMs[1]; }
+            String worst() { int m = 0; for (int i = 1; i < monitorMs.length; i++) if (monitorMs[i] > monitorMs[m]) m = i; return MONITORS[m]; }
+        }
+        final VicBarcelonaTrafficSim sim;
+        final ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        final boolean timed;
+        final String simLock, rabLock;
+        final Map<Long, long[]> seen = new HashMap<>();      // id -> blockedCount, blockedMs
+        final long[][] total = new long[GROUPS.length][2];   // acumulado desde el arranque, para /metrics
+        final long[][] window = new long[GROUPS.length][2];
+        final int[] waits = new int[GROUPS.length];          // muestras esperando fuera de la cola ociosa
+        final long[] waitsTotal = new long[GROUPS.length];
+        final int[] hits = new int[MONITORS.length];
+        final long[] hitsTotal = new long[MONITORS.length];
+        volatile Sample last = new Sample(new double[2], new double[2], new double[3]);
+        volatile long edtId = -1;
+        long from = System.nanoTime();
+
+        ContentionProbe(VicBarcelonaTrafficSim sim) {
+            this.sim = sim;
+            timed = mx.isThreadContentionMonitoringSupported();
+            if (timed) mx.setThreadContentionMonitoringEnabled(true);
+            simLock = lockName(sim); rabLock = lockName(sim.rabCars);
+        }
+
+        // Mismo formato que ThreadInfo.getLockName()
+        static String lockName(Object o) { return o.getClass().getName() + '@' + Integer.toHexString(System.identityHashCode(o)); }
+
+        long[] ids() {
+            long edt = edtId; int n = sim.schedIds.size();
+            long[] ids = new long[edt >= 0 ? n + 1 : n]; int i = 0;
+            for (long id : sim.schedIds) if (i < n) ids[i++] = id;
+            if (edt >= 0) ids[ids.length - 1] = edt;
+            return ids;
+        }
+
+        synchronized void sample() {
+            long[] ids = ids(), parked = new long[ids.length]; int np = 0; boolean edt = false;
+            for (ThreadInfo t : mx.getThreadInfo(ids)) {
+                if (t == null) continue;
+                int g = t.getThreadId() == edtId ? 1 : 0; if (g == 1) edt = true;
+                Thread.State st = t.getThreadState();
+                if (st == Thread.State.BLOCKED) {
+                    String ln = t.getLockName();
+                    hits[simLock.equals(ln) ? 0 : rabLock.equals(ln) ? 1 : 2]++;
+                } else if (st == Thread.State.WAITING || st == Thread.State.TIMED_WAITING) parked[np++] = t.getThreadId();
+                long[] cur = {t.getBlockedCount(), Math.max(0, t.getBlockedTime())};
+                long[] prev = seen.put(t.getThreadId(), cur);
+                if (prev == null) continue;
+                for (int k = 0; k < 2; k++) { window[g][k] += cur[k] - prev[k]; total[g][k] += cur[k] - prev[k]; }
+            }
+            if (np > 0) for (ThreadInfo t : mx.getThreadInfo(Arrays.copyOf(parked, np), DEPTH))
+                if (t != null && (t.getThreadState() == Thread.State.WAITING || t.getThreadState() == Thread.State.TIMED_WAITING) && !idle(t))
+                    waits[t.getThreadId() == edtId ? 1 : 0]++;
+            // el EDT se recrea tras una excepcion: solo entonces (o al principio) se pregunta cual es
+            if (!edt) SwingUtilities.invokeLater(() -> edtId = Thread.currentThread().getId());
+            long now = System.nanoTime();
+            if (now - from < WINDOW_MS * 1_000_000L) return;
+            double secs = (now - from) / 1e9;
+            double[] b = new double[2], w = new double[2], m = new double[MONITORS.length];
+            for (int g = 0; g < 2; g++) {
+                b[g] = window[g][1] / secs; w[g] = waits[g] * SAMPLE_MS / secs;
+                Arrays.fill(window[g], 0); waitsTotal[g] += waits[g]; waits[g] = 0;
+            }
+            for (int i = 0; i < m.length; i++) { m[i] = hits[i] * SAMPLE_MS / secs; hitsTotal[i] += hits[i]; hits[i] = 0; }
+            last = new Sample(b, w, m); from = now;
+        }
+
+        // Aparcado en la cola de trabajo del executor o del EDT: ocioso, no esperando a nadie
+        static boolean idle(ThreadInfo t) {
+            for (StackTraceElement e : t.getStackTrace())
+                if (e.getClassName().endsWith("$DelayedWorkQueue") || e.getClassName().equals("java.awt.EventQueue") && e.getMethodName().equals("getNextEvent"))
+                    return true;
+            return false;
+        }
+
+        synchronized void export(StringBuilder sb) {
+            metric(sb, "trafficsim_jvm_lock_events_total", "counter", "Veces que los hilos de la app se bloquearon en un monitor");
+            for (int g = 0; g < 2; g++)
+                sb.append("trafficsim_jvm_lock_events_total{thread=\"").append(GROUPS[g]).append("\",kind=\"blocked\"} ").append(total[g][0]).append('\n');
+            metric(sb, "trafficsim_jvm_lock_seconds_total", "counter", "Tiempo bloqueado (contention monitoring) o esperando fuera de la cola ociosa (muestreo)");
+            for (int g = 0; g < 2; g++) {
+                sb.append("trafficsim_jvm_lock_seconds_total{thread=\"").append(GROUPS[g]).append("\",kind=\"blocked\"} ").append(total[g][1] / 1e3).append('\n');
+                sb.append("trafficsim_jvm_lock_seconds_total{thread=\"").append(GROUPS[g]).append("\",kind=\"waited\"} ").append(waitsTotal[g] * SAMPLE_MS / 1e3).append('\n');
+            }
+            metric(sb, "trafficsim_jvm_monitor_blocked_seconds_total", "counter", "Bloqueo estimado por muestreo en cada monitor");
+            for (int i = 0; i < MONITORS.length; i++)
+                sb.append("trafficsim_jvm_monitor_blocked_seconds_total{monitor=\"").append(MONITORS[i]).append("\"} ").append(hitsTotal[i] * SAMPLE_MS / 1e3).append('\n');
+        }
+    }
+
+    // ── Eventos JFR (-XX:StartFlightRecording; sin grabacion el coste es ~0) ─
+    @Name("trafficsim.TickPhase") @Label("Fase del tick") @Category({"TrafficSim", "Tick"})
+    static class PhaseEvent extends Event { @Label("Fase") String phase; @Label("Tick") long tick; }
+
+    @Name("trafficsim.CongestionStart") @Label("Inicio de atasco") @Category({"TrafficSim", "Congestion"})
+    static class CongestionStartEvent extends Event {
+        @Label("Atasco") int jam; @Label("Segmento") int segment; @Label("Zona") String zone; @Label("Densidad") double density;
+    }
+
+    @Name("trafficsim.CongestionEnd") @Label("Fin de atasco") @Category({"TrafficSim", "Congestion"})
+    static class CongestionEndEvent extends Event {
+        @Label("Atasco") int jam; @Label("Segmento") int segment; @Label("Zona") String zone;
+        @Label("Duracion") @Timespan(Timespan.MILLISECONDS) long lasted;
+    }
+
+    @Name("trafficsim.RoundaboutAdmission") @Label("Admision rotonda") @Category({"TrafficSim", "Rotonda"})
+    static class RabAdmissionEvent extends Event {
+        @Label("Admitido") boolean admitted; @Label("Coche") int carId; @Label("Carril") int lane; @Label("Posicion") int pos;
+        @Label("Ocupacion") int occupancy; @Label("Capacidad") int capacity;
+    }
+
+    @Name("trafficsim.ExitStarvation") @Label("Salida sin tokens") @Category({"TrafficSim", "Salidas"})
+    static class ExitStarvationEvent extends Event {
+        @Label("Salida") String exit; @Label("Coche") int carId; @Label("Carril") int lane;
+        @Label("Tokens") double tokens; @Label("Tasa/min") double rate;
+    }
+
+    // ── Modo distribuido: la carretera partida en zonas, una por proceso (-Dsim.zones) ──
+    // Cada zona es otra JVM (-Dsim.zoneOf=host:puerto) que guarda sus celdas [lo, hi) y ejecuta moveLane().
+    // El coordinador es la simulacion normal: reloj, RNG, colas, semaforos, rotonda, metricas y un espejo
+    // de la carretera que rehace al final de cada tick. El tick va en lock-step: BEGIN a todas las zonas,
+    // una tarea por (carril, zona) y END. Para dar el mismo resultado que un solo proceso las tareas siguen
+    // el orden de movement() (carril a carril, de aguas abajo hacia arriba); una tarea solo toca su zona y
+    // las vecinas (halo de gap+1 celdas), asi que puede salir en cuanto terminan las anteriores a menos de
+    // dos zonas: un frente de onda con hasta un carril en marcha por zona. Los cortes nunca parten la
+    // ventana de salida de Granollers ni el tramo de Barcelona, que tienen sus buckets en una sola zona.
+    // Si una zona cae o no responde en REPLY_S, el espejo vuelve a como estaba al empezar el tick (las
+    // respuestas de END solo se aplican cuando han llegado todas), se cierran las zonas y el tick y los
+    // siguientes se mueven en local; diagnostic() lo avisa durante LOST_DIAG_MS.
+    static final class Zones implements Closeable {
+        static final byte OP_LOAD = 1, OP_BEGIN = 2, OP_LANE = 3, OP_END = 4;
+        static final int H_MAX = 9, WIRE = 24, TIMEOUT_S = 30, REPLY_S = 5; // halo maximo (gap 8 + 1), bytes por coche
+        static final long LOST_DIAG_MS = 30_000;
+        record Reply(int zone, ByteBuffer b) {}
+        final VicBarcelonaTrafficSim sim;
+        final int n; final int[] cut; // zona k = celdas [cut[k], cut[k+1])
+        final Socket[] socks; final DataOutputStream[] out;
+        final List<Process> procs = new ArrayList<>();
+        final BlockingQueue<Reply> replies = new LinkedBlockingQueue<>();
+        volatile boolean loaded; // false: la proxima vuelta manda cada zona entera (arranque, checkpoint, reinicio)
+        volatile double exchangeMs;
+
+        // spec "N": lanza N procesos locales; "N@puerto": espera N zonas arrancadas a mano en otras maquinas
+        Zones(VicBarcelonaTrafficSim sim, String spec) throws IOException {
+            this.sim = sim;
+            int at = spec.indexOf('@');
+            n = Integer.parseInt(at < 0 ? spec : spec.substring(0, at));
+            cut = cuts(n); socks = new Socket[n]; out = new DataOutputStream[n];
+            try (ServerSocket ss = new ServerSocket(at < 0 ? 0 : Integer.parseInt(spec.substring(at + 1)))) {
+                ss.setSoTimeout(TIMEOUT_S * 1000);
+                if (at < 0) {
+                    String java = ProcessHandle.current().info().command().orElse("java");
+                    for (int k = 0; k < n; k++)
+                        procs.add(new ProcessBuilder(java, "-Djava.awt.headless=true", "-Dsim.zoneOf=localhost:" + ss.getLocalPort(),
+                                "-cp", System.getProperty("java.class.path"), VicBarcelonaTrafficSim.class.getName()).inheritIO().start());
+                }
+                for (int k = 0; k < n; k++) {
+                    Socket s = socks[k] = ss.accept(); s.setTcpNoDelay(true);
+                    out[k] = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+                    int zone = k;
+                    Thread t = new Thread(() -> {
+                        try { for (;;) replies.put(new Reply(zone, recv(in))); }
+                        catch (IOException | InterruptedException e) { replies.offer(new Reply(zone, null)); }
+                    }, "sim-zone-" + k);
+                    t.setDaemon(true); t.start();
+                }
+            } catch (IOException e) { close(); throw e; }
+        }
+
+        static int[] cuts(int n) {
+            if (n < 1) throw new IllegalArgumentException("numero de zonas invalido: " + n);
+            int[] c = new int[n + 1];
+            for (int k = 0; k <= n; k++) {
+                int x = k * ROAD_LEN / n;
+                if (x > X_GRANOLLERS - 3 && x <= X_GRANOLLERS) x = X_GRANOLLERS - 3;
+                if (x > X_BARCELONA && x < ROAD_LEN) x = X_BARCELONA;
+                c[k] = x;
+            }
+            for (int k = 0; k < n; k++)
+                if (c[k + 1] - c[k] < H_MAX) throw new IllegalArgumentException("demasiadas zonas: cada una necesita al menos " + H_MAX + " celdas");
+            return c;
+        }
+
+        boolean owns(int k, int cell) { return cell >= cut[k] && cell < cut[k + 1]; }
+
+        // Sustituye a movement() en el coordinador; corre dentro de tick(), con el monitor de sim
+        void movement() {
+            long t0 = System.nanoTime();
+            Car[][] road = sim.road, before = new Car[LANES][];
+            for (int l = 0; l < LANES; l++) before[l] = road[l].clone();
+            try {
+                Params p = sim.tp; int h = p.gap() + 1;
+                if (h > H_MAX) throw new IllegalStateException("gap " + p.gap() + " mayor que el halo de las zonas");
+                if (!loaded) {
+                    for (int k = 0; k < n; k++) {
+                        ByteBuffer b = ByteBuffer.allocate(16 + LANES * (cut[k + 1] - cut[k]) * WIRE);
+                        b.put(OP_LOAD).putShort((short) cut[k]).putShort((short) cut[k + 1]);
+                        putWindow(b, road, cut[k], cut[k + 1]);
+                        send(k, b);
+                    }
+                    loaded = true;
+                }
+                int[] pv = p.values();
+                for (int k = 0; k < n; k++) {
+                    ByteBuffer b = ByteBuffer.allocate(128 + sim.lights.size() + 2 * LANES * WIRE);
+                    b.put(OP_BEGIN); for (int v : pv) b.putInt(v);
+                    b.putDouble(sim.bBcn.tokens).putDouble(sim.bGran.tokens).putInt(sim.rabCars.size());
+                    for (Light tl : sim.lights) b.put((byte) (tl.red ? 1 : 0));
+                    // entries() ya ha corrido sobre el espejo: las columnas de entrada van a su zona
+                    b.put((byte) ((owns(k, E_VIC) ? 1 : 0) + (owns(k, E_CENTELLES) ? 1 : 0)));
+                    if (owns(k, E_VIC)) putWindow(b, road, E_VIC, E_VIC + 1);
+                    if (owns(k, E_CENTELLES)) putWindow(b, road, E_CENTELLES, E_CENTELLES + 1);
+                    send(k, b);
+                }
+                int tasks = LANES * n, left = tasks;
+                boolean[] sent = new boolean[tasks], done = new boolean[tasks];
+                int[] running = new int[n];
+                while (left > 0) {
+                    for (int t = 0; t < tasks; t++) if (!sent[t] && ready(t, done)) {
+                        int k = zone(t), lo = cut[k], hi = cut[k + 1];
+                        ByteBuffer b = ByteBuffer.allocate(16 + 4 * LANES * h * WIRE);
+                        b.put(OP_LANE).put((byte) (t / n));
+                        putWindow(b, road, lo - h, lo + h); putWindow(b, road, hi - h, hi + h);
+                        send(k, b); sent[t] = true; running[k] = t;
+                    }
+                    Reply r = take();
+                    getWindow(r.b(), road); getWindow(r.b(), road); // franjas propias y la celda hi (coches que cruzan)
+                    done[running[r.zone()]] = true; left--;
+                }
+                for (int k = 0; k < n; k++) { // con la franja baja: puede haber entrado un coche despues de su ultima tarea
+                    ByteBuffer b = ByteBuffer.allocate(16 + LANES * h * WIRE);
+                    b.put(OP_END); putWindow(b, road, cut[k], cut[k] + h); send(k, b);
+                }
+                // Se decodifican todas las respuestas antes de tocar nada de sim: si una falla, solo hay que
+                // devolver road a como estaba (lo hace el catch) y no quedan contadores ni fichas a medias
+                double bcn = sim.bBcn.tokens, gran = sim.bGran.tokens; int exB = 0, exG = 0;
+                List<Car> gone = new ArrayList<>(), rab = new ArrayList<>();
+                for (int k = 0; k < n; k++) {
+                    Reply r = take(); ByteBuffer b = r.b(); int z = r.zone();
+                    double zb = b.getDouble(), zg = b.getDouble();
+                    if (owns(z, X_BARCELONA)) bcn = zb;
+                    if (owns(z, X_GRANOLLERS)) gran = zg;
+                    exB += b.getInt(); exG += b.getInt();
+                    for (int m = b.getInt(); m > 0; m--) gone.add(get(b));
+                    for (int m = b.getInt(); m > 0; m--) rab.add(get(b));
+                    getWindow(b, road);
+                }
+                sim.bBcn.tokens = bcn; sim.bGran.tokens = gran;
+                sim.exBcn += exB; sim.exGran += exG;
+                for (Car c : gone) sim.waited(c);
+                sim.rabCars.addAll(rab);
+            } catch (IOException | RuntimeException e) {
+                for (int l = 0; l < LANES; l++) System.arraycopy(before[l], 0, road[l], 0, ROAD_LEN);
+                lost(e);
+                sim.movement();
+                return;
+            }
+            exchangeMs = (System.nanoTime() - t0) / 1e6;
+        }
+
+        // Sin reintentos: se sueltan las zonas y la simulacion sigue en este proceso
+        void lost(Exception e) {
+            System.err.println("Zonas: " + e + "; se sigue en local");
+            close(); replies.clear();
+            sim.zones = null;
+            sim.zonesLost = "ZONAS CAIDAS (" + e.getMessage() + "): la simulacion sigue en un solo proceso.";
+            sim.zonesLostMs = sim.simMs;
+        }
+
+        int zone(int t) { return n - 1 - t % n; }
+
+        // Lista si ya acabaron todas las tareas anteriores (en orden serie) que tocan celdas compartidas
+        boolean ready(int t, boolean[] done) {
+            int k = zone(t);
+            for (int u = 0; u < t; u++) if (!done[u] && Math.abs(zone(u) - k) <= 2) return false;
+            return true;
+        }
+
+        void send(int k, ByteBuffer b) throws IOException {
+            b.flip(); out[k].writeInt(b.remaining()); out[k].write(b.array(), 0, b.remaining()); out[k].flush();
+        }
+
+        Reply take() throws IOException {
+            try {
+                Reply r = replies.poll(REPLY_S, TimeUnit.SECONDS);
+                if (r == null || r.b() == null) throw new IOException("la zona " + (r == null ? "?" : r.zone()) + " no responde");
+                return r;
+            } catch (InterruptedException e) { Thread.currentThread().interrupt(); throw new IOException(e); }
+        }
+
+        static ByteBuffer recv(DataInputStream in) throws IOException {
+            byte[] a = new byte[in.readInt()]; in.readFully(a); return ByteBuffer.wrap(a);
+        }
+
+        // Como putCar() pero con las esperas acumuladas, que viajan con el coche de zona en zona
+        static void put(ByteBuffer b, Car c) { putCar(b, c); b.putInt(c.wRab).putInt(c.wLight).putInt(c.wCell); }
+
+        static Car get(ByteBuffer b) { Car c = getCar(b); c.wRab = b.getInt(); c.wLight = b.getInt(); c.wCell = b.getInt(); return c; }
+
+        // Celdas [from, to) de los tres carriles; al leer se vacia el rango antes de colocar los coches
+        static void putWindow(ByteBuffer b, Car[][] road, int from, int to) {
+            from = Math.max(0, from); to = Math.min(ROAD_LEN, to);
+            b.putShort((short) from).putShort((short) to);
+            int at = b.position(), cnt = 0; b.putInt(0);
+            for (int l = 0; l < LANES; l++) for (int i = from; i < to; i++) if (road[l][i] != null) { put(b, road[l][i]); cnt++; }
+            b.putInt(at, cnt);
+        }
+
+        static void getWindow(ByteBuffer b, Car[][] road) {
+            int from = b.getShort(), to = b.getShort();
+            for (Car[] lane : road) Arrays.fill(lane, from, to, null);
+            for (int cnt = b.getInt(); cnt > 0; cnt--) { Car c = get(b); road[c.lane][c.pos] = c; }
+        }
+
+        // Proceso de zona: una simulacion sin ventana que solo usa road, tp, buckets y moveLane()
+        static void serve(String addr) throws IOException {
+            int colon = addr.lastIndexOf(':');
+            VicBarcelonaTrafficSim z = new VicBarcelonaTrafficSim();
+            Car held = new Car(-1, X_GRANOLLERS, 0, true); // ocupa plaza en la rotonda del coordinador
+            z.gone = new ArrayList<>();
+            try (Socket s = new Socket(addr.substring(0, colon), Integer.parseInt(addr.substring(colon + 1)))) {
+                s.setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+                DataOutputStream o = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+                int lo = 0, hi = 0, occ = 0;
+                for (;;) {
+                    ByteBuffer b;
+                    try { b = recv(in); } catch (EOFException e) { return; }
+                    ByteBuffer r = null;
+                    switch (b.get()) {
+                        case OP_LOAD -> {
+                            lo = b.getShort(); hi = b.getShort();
+                            for (Car[] lane : z.road) Arrays.fill(lane, null);
+                            getWindow(b, z.road);
+                        }
+                        case OP_BEGIN -> {
+                            int[] pv = new int[Params.KEYS.size()];
+                            for (int i = 0; i < pv.length; i++) pv[i] = b.getInt();
+                            z.tp = Params.of(pv);
+                            z.bBcn.tokens = b.getDouble(); z.bGran.tokens = b.getDouble(); occ = b.getInt();
+                            for (Light tl : z.lights) tl.red = b.get() != 0;
+                            for (int w = b.get(); w > 0; w--) getWindow(b, z.road);
+                            z.rabCars.clear(); for (int i = 0; i < occ; i++) z.rabCars.add(held);
+                            z.exBcn = z.exGran = 0; z.gone.clear();
+                        }
+                        case OP_LANE -> {
+                            int l = b.get(), h = z.tp.gap() + 1;
+                            getWindow(b, z.road); getWindow(b, z.road);
+                            z.moveLane(l, lo, hi);
+                            r = ByteBuffer.allocate(16 + 2 * LANES * (h + 1) * WIRE);
+                            putWindow(r, z.road, lo, Math.min(lo + h, hi)); putWindow(r, z.road, Math.max(hi - h, lo), hi + 1);
+                        }
+                        case OP_END -> {
+                            getWindow(b, z.road);
+                            List<Car> adm = z.rabCars.subList(occ, z.rabCars.size());
+                            r = ByteBuffer.allocate(64 + (z.gone.size() + adm.size() + LANES * (hi - lo)) * WIRE);
+                            r.putDouble(z.bBcn.tokens).putDouble(z.bGran.tokens).putInt((int) z.exBcn).putInt((int) z.exGran);
+                            r.putInt(z.gone.size()); for (Car c : z.gone) put(r, c);
+                            r.putInt(adm.size()); for (Car c : adm) put(r, c);
+                            putWindow(r, z.road, lo, hi);
+                        }
+                        default -> throw new IOException("mensaje de zona desconocido");
+                    }
+                    if (r != null) { r.flip(); o.writeInt(r.remaining()); o.write(r.array(), 0, r.remaining()); o.flush(); }
+                }
+            }
+        }
+
+        @Override public void close() {
+            for (Socket s : socks) if (s != null) try { s.close(); } catch (IOException ignored) {}
+            for (Process pr : procs) pr.destroy();
+        }
+    }
+
+    // ── Muchas simulaciones en una JVM (-Dsim.fleet=N) ─────────────────────
+    // Las instancias de un Fleet nunca llaman a start(), asi que no tienen hilos propios: las mueve step()
+    // desde un ForkJoinPool compartido en modo FIFO. Cada porcion ejecuta ticks durante SLICE_MS como mucho
+    // y la tarea vuelve al final de la cola, con lo que cientos de escenarios se turnan en los nucleos
+    // aunque alguno sea mucho mas caro; el work-stealing reparte las colas entre hilos. Las instancias de
+    // tiempo real solo ejecutan los ticks vencidos y esperan al siguiente en un unico timer compartido.
+    // De cada porcion se apunta a su instancia la CPU y los bytes reservados por el hilo (HotSpot).
+    static final class Fleet implements Closeable {
+        static final long SLICE_MS = 5;
+        final ForkJoinPool pool;
+        final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "fleet-timer"); t.setDaemon(true); return t;
+        });
+        final List<Tenant> tenants = new CopyOnWriteArrayList<>();
+        final com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        volatile boolean closed;
+
+        Fleet(int threads) { pool = new ForkJoinPool(threads, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true); }
+
+        final class Tenant {
+            final String name; final VicBarcelonaTrafficSim sim; final boolean realtime; final long untilMs;
+            final CompletableFuture<Tenant> finished = new CompletableFuture<>();
+            long due; // nanoTime del siguiente tick en tiempo real
+            volatile long ticks, slices, cpuNs, allocBytes, lostTicks; volatile boolean done; volatile Throwable failed;
+
+            Tenant(String name, VicBarcelonaTrafficSim sim, boolean realtime, long untilMs) {
+                this.name = name; this.sim = sim; this.realtime = realtime; this.untilMs = untilMs; due = System.nanoTime();
+            }
+
+            // Una porcion: nunca hay dos a la vez de la misma instancia, la siguiente se encola al acabar esta
+            void slice() {
+                if (closed || done) return;
+                long t0 = System.nanoTime(), c0 = mx.getCurrentThreadCpuTime(), a0 = mx.getCurrentThreadAllocatedBytes(), n = 0;
+                try {
+                    do {
+                        if (realtime) {
+                            long now = System.nanoTime(), period = sim.cfg.get().tickMs() * 1_000_000L;
+                            if (now < due) break;
+                            if (now - due > MAX_CATCHUP * period) { long lost = (now - due) / period; lostTicks += lost; due += lost * period; }
+                            due += period;
+                        }
+                        sim.step(); n++;
+                        if (untilMs > 0 && sim.simMs >= untilMs) done = true;
+                    } while (!done && System.nanoTime() - t0 < SLICE_MS * 1_000_000L);
+                } catch (RuntimeException | Error e) { failed = e; done = true; } // solo cae esta instancia
+                ticks += n; slices++;
+                cpuNs += mx.getCurrentThreadCpuTime() - c0; allocBytes += mx.getCurrentThreadAllocatedBytes() - a0;
+                if (done) finished.complete(this);
+                else if (realtime) timer.schedule(() -> pool.execute(this::slice), Math.max(0, due - System.nanoTime()), TimeUnit.NANOSECONDS);
+                else pool.execute(this::slice);
+            }
+
+            // Memoria retenida aproximada: lo que crece con la carga (colas, coches, rotonda) mas el historico
+            long retainedBytes() {
+                return (sim.qvLen + sim.qcLen) * 40L + (sim.carsOn + 0L) * 64 + sim.series.bytes() + LANES * ROAD_LEN * 4L * 2;
+            }
+        }
+
+        // realtime: al ritmo de tickMs; si no, tan rapido como deje el turno hasta untilMs de simulacion (0 = sin fin)
+        Tenant add(String name, long seed, boolean realtime, long untilMs, Consumer<VicBarcelonaTrafficSim> setup) {
+            VicBarcelonaTrafficSim s = new VicBarcelonaTrafficSim(seed);
+            if (setup != null) setup.accept(s);
+            Tenant t = new Tenant(name, s, realtime, untilMs);
+            tenants.add(t);
+            pool.execute(t::slice);
+            return t;
+        }
+
+        void remove(Tenant t) { t.done = true; tenants.remove(t); t.finished.complete(t); }
+
+        String report(int top) {
+            List<Tenant> ts = new ArrayList<>(tenants);
+            ts.sort(Comparator.comparingLong((Tenant t) -> t.cpuNs).reversed());
+            long ticks = 0, cpu = 0, alloc = 0, minCpu = Long.MAX_VALUE, maxCpu = 0; int done = 0, failed = 0;
+            for (Tenant t : ts) {
+                ticks += t.ticks; cpu += t.cpuNs; alloc += t.allocBytes; minCpu = Math.min(minCpu, t.cpuNs); maxCpu = Math.max(maxCpu, t.cpuNs);
+                if (t.done) done++; if (t.failed != null) failed++;
+            }
+            StringBuilder sb = new StringBuilder(String.format("%d instancias (%d terminadas, %d con error) en %d hilos: %d ticks, CPU %.1f s (min %.0f / max %.0f ms), reservado %.1f MB, heap %.1f MB%n",
+                ts.size(), done, failed, pool.getParallelism(), ticks, cpu / 1e9, ts.isEmpty() ? 0 : minCpu / 1e6, maxCpu / 1e6, alloc / 1e6,
+                (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) / 1e6));
+            for (Tenant t : ts.subList(0, Math.min(top, ts.size())))
+                sb.append(String.format("  %-10s t=%5ds ticks=%7d porciones=%6d CPU=%7.1f ms reservado=%7.1f MB retenido~%6.1f KB colas=%d/%d salidas=%d%s%n",
+                    t.name, t.sim.simSec, t.ticks, t.slices, t.cpuNs / 1e6, t.allocBytes / 1e6, t.retainedBytes() / 1e3, t.sim.qvLen, t.sim.qcLen,
+                    t.sim.exGran + t.sim.exBcn, t.failed != null ? "  ERROR " + t.failed : ""));
+            return sb.toString();
+        }
+
+        @Override public void close() { closed = true; pool.shutdownNow(); timer.shutdownNow(); }
+    }
+
+    // Sin ventana: N escenarios por lotes con semillas y entradas distintas, un informe cada pocos segundos
+    static void runFleet(int n) throws InterruptedException {
+        long minutes = Long.getLong("sim.fleet.minutes", 60), seed = Long.getLong("sim.seed", 1);
+        try (Fleet f = new Fleet(Integer.getInteger("sim.fleet.threads", Runtime.getRuntime().availableProcessors()))) {
+            List<CompletableFuture<Fleet.Tenant>> all = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                int vic = 10 + i * 37 % 140; // de fluido a colapso
+                all.add(f.add("sim-" + i, seed + i, false, minutes * 60_000, s -> s.set("vic", vic)).finished);
+            }
+            CompletableFuture<Void> end = CompletableFuture.allOf(all.toArray(new CompletableFuture<?>[0]));
+            long t0 = System.nanoTime();
+            while (!end.isDone()) {
+                try { end.get(5, TimeUnit.SECONDS); } catch (TimeoutException | ExecutionException ignored) {}
+                System.out.print(f.report(5));
+            }
+            System.out.printf("Fin en %.1f s de reloj%n", (System.nanoTime() - t0) / 1e9);
+        }
+    }
+
+    // ── Guiones de escenario (-Dsim.script=fichero) ───────────────────────
+    // Una orden por linea con la hora de simulacion delante ("at" opcional); '#' empieza un comentario:
+    //   00:00 set vic=60 cen=40 rab=1
+    //   at 07:30 set entryVic=80 tickMs=40
+    //   08:15 close rab            (open|close rab|lights)
+    //   1:00:00 end
+    // Las claves son las de Params o el nombre del componente del record. Cada linea acaba en un
+    // schedule() normal, igual que los cambios de la UI, asi que se aplica al principio de un tick.
+    record Scenario(String name, List<Step> steps, long endMs) {
+        record Step(long atMs, String text, UnaryOperator<Params> op) {}
+
+        static Scenario load(String src) throws IOException {
+            if (src.startsWith("reto:")) {
+                int i = Integer.parseInt(src.substring(5)) - 1;
+                if (i < 0 || i >= RETOS.length) throw new IllegalArgumentException("no existe el reto " + (i + 1));
+                return parse(src, RETOS[i]);
+            }
+            return parse(src, Files.readString(Path.of(src)));
+        }
+
+        static Scenario parse(String name, String text) {
+            List<Step> steps = new ArrayList<>(); long end = 0, last = 0; int ln = 0;
+            for (String raw : text.split("\\R")) {
+                ln++;
+                int hash = raw.indexOf('#');
+                String line = (hash >= 0 ? raw.substring(0, hash) : raw).trim();
+                if (line.isEmpty()) continue;
+                String[] w = line.split("\\s+");
+                int k = w[0].equals("at") ? 1 : 0;
+                try {
+                    if (w.length < k + 2) throw new IllegalArgumentException("falta la orden");
+                    long at = clock(w[k]);
+                    if (at < last) throw new IllegalArgumentException("la hora va hacia atras");
+                    last = at;
+                    String cmd = w[k + 1];
+                    if (cmd.equals("end")) {
+                        if (w.length > k + 2) throw new IllegalArgumentException("sobra texto tras end");
+                        end = at; continue;
+                    }
+                    if (end > 0) throw new IllegalArgumentException("orden despues de end");
+                    UnaryOperator<Params> op = UnaryOperator.identity();
+                    if (cmd.equals("set")) {
+                        if (w.length == k + 2) throw new IllegalArgumentException("set sin clave=valor");
+                        for (int i = k + 2; i < w.length; i++) {
+                            int eq = w[i].indexOf('=');
+                            if (eq <= 0) throw new IllegalArgumentException("se esperaba clave=valor: " + w[i]);
+                            String key = w[i].substring(0, eq); int v = value(w[i].substring(eq + 1));
+                            Params.index(key);
+                            op = compose(op, key, v);
+                        }
+                    } else if (cmd.equals("open") || cmd.equals("close")) {
+                        if (w.length != k + 3 || !(w[k + 2].equals("rab") || w[k + 2].equals("lights")))
+                            throw new IllegalArgumentException(cmd + " espera rab o lights");
+                        op = compose(op, w[k + 2], cmd.equals("open") ? 1 : 0);
+                    } else throw new IllegalArgumentException("orden desconocida: " + cmd);
+                    steps.add(new Step(at, line, op));
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException(name + ":" + ln + ": " + e.getMessage(), e);
+                }
+            }
+            return new Scenario(name, List.copyOf(steps), end);
+        }
+
+        static UnaryOperator<Params> compose(UnaryOperator<Params> op, String key, int v) { return p -> op.apply(p).with(key, v); }
+
+        // [hh:]mm:ss
+        static long clock(String t) {
+            String[] f = t.split(":");
+            if (f.length < 2 || f.length > 3) throw new IllegalArgumentException("hora no valida: " + t);
+            long ms = 0;
+            for (int i = 0; i < f.length; i++) {
+                long n;
+                try { n = Long.parseLong(f[i]); } catch (NumberFormatException e) { throw new IllegalArgumentException("hora no valida: " + t); }
+                if (n < 0 || i > 0 && n >= 60) throw new IllegalArgumentException("hora no valida: " + t);
+                ms = ms * 60 + n;
+            }
+            return ms * 1000;
+        }
+
+        static int value(String v) {
+            switch (v) { case "true": case "on": return 1; case "false": case "off": return 0; }
+            try { return Integer.parseInt(v); } catch (NumberFormatException e) { throw new IllegalArgumentException("valor no valido: " + v); }
+        }
+
+        // Lo que queda tras aplicar todo lo programado para el instante 0 (los presets de la UI)
+        UnaryOperator<Params> initial() {
+            UnaryOperator<Params> op = UnaryOperator.identity();
+            for (Step st : steps) if (st.atMs() == 0) { UnaryOperator<Params> a = op, b = st.op(); op = p -> b.apply(a.apply(p)); }
+            return op;
+        }
+
+        void applyTo(VicBarcelonaTrafficSim s, long offsetMs) { for (Step st : steps) s.schedule(offsetMs + st.atMs(), st.op()); }
+    }
+
+    // Los retos del panel izquierdo, como guiones (-Dsim.script=reto:2 los corre sin ventana)
+    static final String[] RETOS = {
+        "00:00 set vic=60 cen=40 gran=30 bcn=60 rabcap=1 rabexit=20 pct=40 rab=1 lights=0\n",
+        "00:00 set vic=80 cen=40 gran=20 bcn=10 rabcap=15 rabexit=20 pct=20 rab=1 lights=0\n",
+        "00:00 set vic=50 cen=30 gran=30 bcn=50 rabcap=20 rabexit=2 pct=60 rab=1 lights=0\n",
+        "00:00 set vic=50 cen=30 gran=30 bcn=50 rabcap=5 rabexit=15 pct=95 rab=1 lights=0\n",
+    };
+
+    static String hms(long ms) { long s = ms / 1000; return String.format("%02d:%02d:%02d", s / 3600, s / 60 % 60, s % 60); }
+
+    // Salidas de fichero comunes a la ventana y al modo por lotes
+    void outputs() {
+        String rPath = System.getProperty("sim.record");
+        if (rPath != null) try { recorder = new Recorder(Path.of(rPath)); } catch (IOException e) { e.printStackTrace(); }
+        String tPath = System.getProperty("sim.telemetry");
+        if (tPath != null) try { telemetry = new Telemetry(Path.of(tPath), this); } catch (IOException e) { e.printStackTrace(); }
+        String lPath = System.getProperty("sim.live");
+        if (lPath != null) try { live = new LiveView(Path.of(lPath)); } catch (IOException e) { e.printStackTrace(); }
+    }
+
+    synchronized void closeOutputs() {
+        if (telemetry != null) try { telemetry.close(); } catch (IOException ex) { ex.printStackTrace(); }
+        telemetry = null;
+        if (recorder != null) try { recorder.close(); } catch (IOException ex) { ex.printStackTrace(); }
+        recorder = null;
+        if (live != null) try { live.close(); } catch (IOException ex) { ex.printStackTrace(); }
+        live = null;
+    }
+
+    // Sin ventana ni Swing: corre el guion a toda maquina con step() y escribe un resumen en stdout
+    // (y en -Dsim.out si se pide). Sin "end" dura -Dsim.minutes minutos de simulacion (60).
+    static int runScript(String src) {
+        Scenario sc;
+        try { sc = Scenario.load(src); }
+        catch (IOException e) { System.err.println("Guion: no se puede leer " + src + " (" + e + ")"); return 2; }
+        catch (IllegalArgumentException e) { System.err.println("Guion: " + e.getMessage()); return 2; }
+        long endMs = sc.endMs() > 0 ? sc.endMs() : Long.getLong("sim.minutes", 60) * 60_000;
+        Double soak = System.getProperty("sim.soak") == null ? null : Double.valueOf(System.getProperty("sim.soak"));
+        VicBarcelonaTrafficSim sim = new VicBarcelonaTrafficSim(Long.getLong("sim.seed", 1));
+        sim.outputs();
+        sc.applyTo(sim, 0);
+        System.out.printf("Guion %s: %d cambios, %s de simulacion, semilla %d%n", sc.name(), sc.steps().size(), hms(endMs), sim.seed);
+        for (Scenario.Step st : sc.steps()) System.out.println("  " + st.text());
+        try {
+            int rc = soak != null ? sim.soak(sc, endMs, (long) (soak * 60_000)) : 0;
+            if (soak == null) {
+                long t0 = System.nanoTime();
+                while (sim.simMs < endMs) { long s0 = System.nanoTime(); sim.step(); sim.tickHist.observe(System.nanoTime() - s0); }
+                String sum = sim.summary(System.nanoTime() - t0);
+                System.out.print(sum);
+                String out = System.getProperty("sim.out");
+                if (out != null) try { Files.writeString(Path.of(out), sum); } catch (IOException e) { System.err.println("Resumen: " + e); return 2; }
+            }
+            return rc;
+        } finally { sim.closeOutputs(); sim.sched.shutdownNow(); }
+    }
+
+    String summary(long wallNs) {
+        Params p = cfg.get(); int rab = rabCars.size();
+        return String.format("Simulado %s en %.2f s de reloj: %d ticks (%.0f ticks/s)%n", hms(simMs), wallNs / 1e9, tickNo, tickNo * 1e9 / Math.max(1, wallNs))
+             + String.format("Entradas: Vic %d, Centelles %d   Salidas: Granollers %d, Barcelona %d%n", enVic, enCen, exGran, exBcn)
+             + String.format("Al final: %d coches en carretera, %d en rotonda; colas Vic/Centelles %d/%d (max %d/%d)%n", carsOn, rab, qvLen, qcLen, maxQV, maxQC)
+             + String.format("Atascos activos: %d%s   Diagnostico: %s%n", jamTracker.jams.size(),
+                   bnName.isEmpty() ? "" : ", cuello de botella en " + bnName, diag.msg())
+             + String.format("Tick: p50 %.3f ms, p95 %.3f ms, p99 %.3f ms, media %.3f ms%n",
+                   tickHist.quantileMs(0.5), tickHist.quantileMs(0.95), tickHist.quantileMs(0.99), tickHist.meanMs())
+             + "Parametros finales: " + p + System.lineSeparator();
+    }
+
+    // Prueba de resistencia (-Dsim.soak=minutos de reloj): repite el guion en bucle y cada SOAK_CHECK_S
+    // comprueba que el heap tras GC, las colas de entrada y el p99 del tick siguen bajo sus limites.
+    // Falla (codigo 1) en cuanto uno se pasa; las colas solo crecen si las entradas superan a las salidas.
+    static final int SOAK_CHECK_S = 10;
+
+    int soak(Scenario sc, long cycleMs, long wallMs) {
+        long heapMb = Long.getLong("sim.soak.heapMb", 256), maxQueue = Long.getLong("sim.soak.queue", 10_000);
+        double p99Ms = Double.parseDouble(System.getProperty("sim.soak.p99Ms", "5"));
+        MemoryMXBean mem = ManagementFactory.getMemoryMXBean();
+        System.out.printf("Soak %s de reloj: heap tras GC <= %d MB, colas <= %d, p99 tick <= %.2f ms%n", hms(wallMs), heapMb, maxQueue, p99Ms);
+        long t0 = System.nanoTime(), next = t0 + SOAK_CHECK_S * 1_000_000_000L, cycleEnd = cycleMs; int cycle = 1;
+        Hist win = new Hist();
+        while (true) {
+            long s0 = System.nanoTime(); step(); long d = System.nanoTime() - s0;
+            tickHist.observe(d); win.observe(d);
+            if (simMs >= cycleEnd) { sc.applyTo(this, cycleEnd); cycleEnd += cycleMs; cycle++; }
+            long now = System.nanoTime();
+            if (now < next && now - t0 < wallMs * 1_000_000L) continue;
+            mem.gc(); // el "uso tras GC" de la generacion vieja no cambia hasta una coleccion completa: se fuerza aqui
+            long used = mem.getHeapMemoryUsage().getUsed();
+            int q = qVic.size() + qCen.size(); double p99 = win.quantileMs(0.99);
+            System.out.printf("  reloj %s  sim %s  ciclo %d  heap tras GC %.1f MB  colas %d  coches %d  p99 %.3f ms%n",
+                hms((now - t0) / 1_000_000), hms(simMs), cycle, used / 1e6, q, carsOn, p99);
+            String bad = used > heapMb << 20 ? "heap tras GC por encima de " + heapMb + " MB"
+                       : q > maxQueue ? "colas de entrada por encima de " + maxQueue
+                       : p99 > p99Ms ? String.format("p99 del tick por encima de %.2f ms", p99Ms) : null;
+            if (bad != null) { System.out.println("SOAK FALLA: " + bad); System.out.print(summary(now - t0)); return 1; }
+            if (now - t0 >= wallMs * 1_000_000L) { System.out.println("SOAK OK"); System.out.print(summary(now - t0)); return 0; }
+            win = new Hist(); next = now + SOAK_CHECK_S * 1_000_000_000L;
         }
     }
 
@@ -53,77 +1625,287 @@ public class VicBarcelonaTrafficSim extends JPanel {
     final List<Car> rabCars = Collections.synchronizedList(new ArrayList<>());
     final ConcurrentLinkedQueue<Integer> qVic = new ConcurrentLinkedQueue<>(), qCen = new ConcurrentLinkedQueue<>();
     final AtomicInteger idGen = new AtomicInteger(1);
+    final long seed;
+    final Rng rng, rVic, rCen;
     final Bucket bGran = new Bucket(DEF_EXIT_GRAN), bBcn = new Bucket(DEF_EXIT_BCN), bRab = new Bucket(DEF_RAB_EXIT);
     final List<Light> lights = new ArrayList<>();
     volatile long exGran, exBcn, enVic, enCen, maxQV, maxQC;
     volatile int carsOn, bnSeg = -1;
-    volatile String bnName = "", diagMsg = "Ajusta los parametros para empezar!";
-    volatile Color diagColor = new Color(100, 200, 255);
-    final double[] segD = new double[ROAD_LEN / SEG_SIZE + 1];
-    static final int HIST = 200;
-    final double[] histCars = new double[HIST];
-    int hIdx; long lastH;
-    final ScheduledExecutorService sched = Executors.newScheduledThreadPool(3);
+    long tickNo;
+    volatile Snapshot snap;
+    volatile Telemetry telemetry;
+    volatile Recorder recorder;
+    volatile LiveView live;
+    volatile int qvLen, qcLen;
+    final Hist tickHist = new Hist(), paintHist = new Hist();
+    final Hist simRab = new Hist(Hist.WAIT_US), simLight = new Hist(Hist.WAIT_US), simCell = new Hist(Hist.WAIT_US);
+    volatile CarThreads carThreads;
+    volatile WorkLab lab;
+    Zones zones;
+    volatile String zonesLost; long zonesLostMs; // ultimo fallo de las zonas, para diagnostic()
+    List<Car> gone; // solo en un proceso de zona: coches que salen, para que el coordinador haga waited()
+    volatile String bnName = "";
+    volatile Diag diag = new Diag("Ajusta los parametros para empezar!", Diag.OK);
+    final double[] segD = new double[ROAD_LEN / SEG_SIZE + 1], segV = new double[ROAD_LEN / SEG_SIZE + 1];
+    final JamTracker jamTracker = new JamTracker();
+    static final long[] ZOOM_MS = {120_000, 600_000, 3_600_000, 21_600_000, 86_400_000};
+    static final String[] ZOOM_LBL = {"2 min", "10 min", "1 h", "6 h", "24 h"};
+    final Series series = new Series();
+    long lastH; int zoom; Rectangle histRect = new Rectangle(), densRect = new Rectangle();
+    final OccRing occRing = new OccRing();
+    boolean spaceTime; BufferedImage stImg; long stDrawn;
+    final Set<Long> schedIds = ConcurrentHashMap.newKeySet();
+    final ScheduledExecutorService sched = Executors.newScheduledThreadPool(3, r -> {
+        Thread t = new Thread(r, "sim-sched-" + schedIds.size()); schedIds.add(t.getId()); return t;
+    });
+    volatile ContentionProbe probe;
     volatile boolean running = true;
-    long lastTick = System.currentTimeMillis(), simStart = System.currentTimeMillis();
+    long simMs; // reloj de simulacion: avanza tickMs por tick, aunque el tick llegue tarde
     volatile long simSec;
+    static final int MAX_CATCHUP = 5, ARRIVE_MS = 80;
+    long arriveMs; // reloj de llegadas de step()
+    final Object loopLock = new Object();
+    ScheduledFuture<?> tickTask;
+    long loopGen; // con loopLock: solo la cadena de tickLoop de la generacion actual sigue viva
+    long lastDue, tpsFrom, tpsTicks, lostTicks;
+    volatile double tps;
 
     // ── Referencias a controles del panel derecho ─────────────────────────
     JSlider sVic, sCen, sGran, sBcn, sGap, sTick, sRabCap, sRabExit, sPct;
+    JCheckBox cbRab, cbLights, cbThreads;
+    JComboBox<String> cbEng;
     JLabel lAdv;
 
     // ── Panel educativo inferior (Swing, no Graphics2D) ───────────────────
     JTextPane eduPane;
+    static final int EDU_MS = 50;
+    final Map<String, HTMLDocument> eduDocs = new HashMap<>(); // plantilla (sin valores) -> documento ya parseado
+    String eduParam = ""; int eduValue;
 
     // ── Constructor ───────────────────────────────────────────────────────
-    public VicBarcelonaTrafficSim() {
-        setBackground(new Color(30, 32, 40));
-        setPreferredSize(new Dimension(1100, 430)); // Altura ajustada
+    public VicBarcelonaTrafficSim() { this(Long.getLong("sim.seed", System.nanoTime())); }
+
+    VicBarcelonaTrafficSim(long seed) {
+        this.seed = seed; rng = new Rng(seed); rVic = new Rng(seed * 31 + 1); rCen = new Rng(seed * 31 + 2);
         lights.add(new Light(X_GRANOLLERS - 5, "Pre-Granollers", 5000, 3500));
         lights.add(new Light(E_CENTELLES + 3, "Centelles", 6000, 2500));
     }
 
+    // ── Vista Swing ───────────────────────────────────────────────────────
+    // El panel y sus timers solo existen si alguien llama a view(): la simulacion en si no carga Swing,
+    // asi corre igual por lotes (-Dsim.script) o en un Fleet. Pinta con paintSim() bajo el monitor de sim.
+    final class View extends JPanel {
+        final javax.swing.Timer eduTimer = new javax.swing.Timer(EDU_MS, e -> renderEdu());
+        final javax.swing.Timer uiPump = new javax.swing.Timer(FRAME_MS, e -> pumpUi());
+
+        View() {
+            setBackground(new Color(30, 32, 40));
+            setPreferredSize(new Dimension(1100, 430)); // Altura ajustada
+            eduTimer.setRepeats(false);
+            addMouseWheelListener(e -> {
+                if (!histRect.contains(e.getPoint())) return;
+                zoom = Math.max(0, Math.min(ZOOM_MS.length - 1, zoom + e.getWheelRotation()));
+                repaint();
+            });
+            addMouseListener(new MouseAdapter() {
+                public void mouseClicked(MouseEvent e) { if (densRect.contains(e.getPoint())) { spaceTime = !spaceTime; repaint(); } }
+            });
+        }
+
+        @Override
+        protected void paintComponent(Graphics g0) {
+            super.paintComponent(g0);
+            synchronized (VicBarcelonaTrafficSim.this) {
+                long p0 = System.nanoTime();
+                paintSim(g0, getWidth(), getHeight());
+                paintHist.observe(System.nanoTime() - p0);
+            }
+        }
+
+        // Las partes que dependen del valor van marcadas con dyn(); el resto es la plantilla. Cada plantilla se
+        // parsea una sola vez a un HTMLDocument y despues solo se reemplaza el texto de sus <span id='dN'>.
+        void renderEdu() {
+            String param; int value;
+            synchronized (eduDocs) { param = eduParam; value = eduValue; }
+            String html = eduHtml(param, value);
+            StringBuilder key = new StringBuilder(), src = new StringBuilder(); List<String> vals = new ArrayList<>();
+            for (int i = 0, j; i < html.length(); i = j + 1) {
+                int k = html.indexOf(DYN_ON, i);
+                if (k < 0) { key.append(html, i, html.length()); src.append(html, i, html.length()); break; }
+                j = html.indexOf(DYN_OFF, k);
+                key.append(html, i, k).append(DYN_ON);
+                src.append(html, i, k).append("<span id='d").append(vals.size()).append("'>").append(html, k + 1, j).append("</span>");
+                vals.add(html.substring(k + 1, j));
+            }
+            try {
+                HTMLDocument d = eduDocs.get(key.toString());
+                if (d == null) {
+                    EditorKit kit = eduPane.getEditorKit();
+                    d = (HTMLDocument) kit.createDefaultDocument();
+                    kit.read(new java.io.StringReader(src.toString()), d, 0);
+                    eduDocs.put(key.toString(), d);
+                }
+                for (int i = 0; i < vals.size(); i++) {
+                    Element e = d.getElement("d" + i);
+                    if (e == null) continue;
+                    int off = e.getStartOffset(), len = e.getEndOffset() - off;
+                    if (!d.getText(off, len).equals(vals.get(i))) d.replace(off, len, vals.get(i), e.getAttributes());
+                }
+                if (eduPane.getDocument() != d) { eduPane.setDocument(d); eduPane.setCaretPosition(0); }
+            } catch (IOException | BadLocationException ex) { eduPane.setText(src.toString()); }
+        }
+    }
+    View view;
+
+    View view() { if (view == null) view = new View(); return view; }
+
     // ── Hilo principal de simulacion ──────────────────────────────────────
     void start() {
-        sched.scheduleAtFixedRate(() -> {
-            if (!running) return;
-            if (entryVic > 0 && Math.random() < entryVic / 750.0) qVic.add(idGen.getAndIncrement());
-        }, 0, 80, TimeUnit.MILLISECONDS);
-        sched.scheduleAtFixedRate(() -> {
-            if (!running) return;
-            if (entryCen > 0 && Math.random() < entryCen / 750.0) qCen.add(idGen.getAndIncrement());
-        }, 0, 80, TimeUnit.MILLISECONDS);
-        sched.scheduleAtFixedRate(() -> {
-            if (!running) return;
-            long now = System.currentTimeMillis(); long dt = now - lastTick; lastTick = now;
-            simSec = (now - simStart) / 1000;
-            try { tick(dt); } catch (Exception e) { e.printStackTrace(); }
-            SwingUtilities.invokeLater(this::repaint);
-        }, 0, tickMs, TimeUnit.MILLISECONDS);
+        sched.scheduleAtFixedRate(() -> { if (running) arriveVic(); }, 0, ARRIVE_MS, TimeUnit.MILLISECONDS);
+        sched.scheduleAtFixedRate(() -> { if (running) arriveCen(); }, 0, ARRIVE_MS, TimeUnit.MILLISECONDS);
+        synchronized (loopLock) { long g = loopGen; tickTask = sched.schedule(() -> tickLoop(g), 0, TimeUnit.NANOSECONDS); }
+        if (view != null) view.uiPump.start();
+        if (!Boolean.getBoolean("sim.probe")) return;
+        ContentionProbe cp = probe = new ContentionProbe(this);
+        sched.scheduleAtFixedRate(cp::sample, ContentionProbe.SAMPLE_MS, ContentionProbe.SAMPLE_MS, TimeUnit.MILLISECONDS);
+    }
+
+    void arriveVic() { int rate = cfg.get().entryVic(); if (rate > 0 && rVic.nextDouble() < rate / 750.0) qVic.add(idGen.getAndIncrement()); }
+    void arriveCen() { int rate = cfg.get().entryCen(); if (rate > 0 && rCen.nextDouble() < rate / 750.0) qCen.add(idGen.getAndIncrement()); }
+
+    // Un tick sin hilos propios (Fleet): las llegadas van por tiempo de simulacion en vez de por reloj de pared
+    void step() {
+        long dt = cfg.get().tickMs();
+        for (arriveMs += dt; arriveMs >= ARRIVE_MS; arriveMs -= ARRIVE_MS) { arriveVic(); arriveCen(); }
+        tick(dt);
+    }
+
+    // Bucle de ticks que se reprograma a si mismo leyendo tickMs en cada vuelta. Si va con retraso
+    // ejecuta como mucho MAX_CATCHUP ticks seguidos y descarta el resto del atraso (lostTicks).
+    void tickLoop(long gen) {
+        synchronized (loopLock) { if (gen != loopGen) return; } // reschedule() ya lanzo otra cadena
+        long now = System.nanoTime(), period = cfg.get().tickMs() * 1_000_000L;
+        if (!running) lastDue = now; // en pausa no se acumula atraso
+        else {
+            if (lastDue == 0) { lastDue = now - period; tpsFrom = now; }
+            int steps = 0;
+            for (; steps < MAX_CATCHUP && now - (lastDue + period) >= 0; steps++) {
+                lastDue += period;
+                long t0 = System.nanoTime();
+                try { tick(period / 1_000_000L); } catch (Exception e) { e.printStackTrace(); }
+                tickHist.observe(System.nanoTime() - t0);
+                period = cfg.get().tickMs() * 1_000_000L; now = System.nanoTime();
+            }
+            if (now - lastDue >= 2 * period) { long lost = (now - lastDue) / period - 1; lostTicks += lost; lastDue += lost * period; }
+            tpsTicks += steps;
+            if (now - tpsFrom >= 1_000_000_000L) { tps = tpsTicks * 1e9 / (now - tpsFrom); tpsTicks = 0; tpsFrom = now; }
+        }
+        long delay = lastDue + period - System.nanoTime();
+        synchronized (loopLock) {
+            if (gen == loopGen && !sched.isShutdown()) tickTask = sched.schedule(() -> tickLoop(gen), Math.max(0, delay), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    // Aplica un cambio de tickMs ya, sin esperar a que venza el periodo antiguo. Solo si la vuelta sigue en
+    // espera: una en marcha tambien deja cancel(false) en true, pero ella misma se reprograma con el tickMs nuevo.
+    void reschedule() {
+        synchronized (loopLock) {
+            if (tickTask != null && tickTask.getDelay(TimeUnit.NANOSECONDS) > 0 && tickTask.cancel(false)) {
+                long g = ++loopGen;
+                tickTask = sched.schedule(() -> tickLoop(g), 0, TimeUnit.NANOSECONDS);
+            }
+        }
     }
 
     synchronized void tick(long dt) {
-        bGran.rate = exitGran; bBcn.rate = exitBcn; bRab.rate = rabExit;
+        tickNo++;
+        PhaseEvent ev = phase(null, "params");
+        simMs += dt; simSec = simMs / 1000;
+        for (Change c; (c = pending.peek()) != null && c.atMs() <= simMs; ) { pending.poll(); cfg.updateAndGet(c.op()); }
+        Params p = tp = cfg.get();
+        ev = phase(ev, "buckets");
+        bGran.rate = p.exitGran(); bBcn.rate = p.exitBcn(); bRab.rate = p.rabExit();
         bGran.tick(dt); bBcn.tick(dt); bRab.tick(dt);
-        if (lightsOn) { long now = System.currentTimeMillis(); for (Light l : lights) l.update(now); }
-        entries(); movement(); if (rabOn) roundabout(); metrics(); bottleneck(); diagnostic();
-        maxQV = Math.max(maxQV, qVic.size()); maxQC = Math.max(maxQC, qCen.size());
+        ev = phase(ev, "lights");
+        if (p.lightsOn()) for (Light l : lights) l.update(simMs);
+        Zones zs = zones; int eng = zs != null ? ENG_CLASSIC : engine; if (eng != engineNow) switchEngine(eng);
+        ev = phase(ev, "entries");    if (eng == ENG_IDM) entriesIdm(); else entries();
+        ev = phase(ev, "movement");   if (zs != null) zs.movement(); else if (eng == ENG_IDM) movementIdm(); else if (eng == ENG_NASCH) movementNaSch(); else movement();
+        ev = phase(ev, "roundabout"); if (p.rabOn()) roundabout();
+        ev = phase(ev, "metrics");    metrics();
+        ev = phase(ev, "bottleneck"); bottleneck(simMs);
+        ev = phase(ev, "diagnostic"); diagnostic();
+        phase(ev, null);
+        qvLen = qVic.size(); qcLen = qCen.size();
+        maxQV = Math.max(maxQV, qvLen); maxQC = Math.max(maxQC, qcLen);
+        occRing.capture(road);
+        snap = new Snapshot(this);
+        Recorder rec = recorder;
+        if (rec != null) try { rec.capture(this); } catch (IOException e) { e.printStackTrace(); recorder = null; }
+        LiveView lv = live;
+        if (lv != null) lv.publish(this);
+        Telemetry tm = telemetry;
+        if (tm != null) try { tm.append(this); } catch (UncheckedIOException e) { e.printStackTrace(); telemetry = null; }
+    }
+
+    // Cierra la fase anterior y abre la siguiente (null = ninguna)
+    PhaseEvent phase(PhaseEvent prev, String name) {
+        if (prev != null) prev.commit();
+        if (name == null) return null;
+        PhaseEvent e = new PhaseEvent();
+        if (!e.isEnabled()) return null;
+        e.phase = name; e.tick = tickNo; e.begin();
+        return e;
+    }
+
+    void starved(String exit, Car c, Bucket b) {
+        ExitStarvationEvent e = new ExitStarvationEvent();
+        if (!e.shouldCommit()) return;
+        e.exit = exit; e.carId = c.id; e.lane = c.lane; e.tokens = b.tokens; e.rate = b.rate; e.commit();
+    }
+
+    void admission(boolean ok, Car c, int l, int i) {
+        RabAdmissionEvent e = new RabAdmissionEvent();
+        if (!e.shouldCommit()) return;
+        e.admitted = ok; e.carId = c.id; e.lane = l; e.pos = i; e.occupancy = rabCars.size(); e.capacity = tp.rabCap(); e.commit();
+    }
+
+    // ── Parametros: publicacion atomica y cambios programados ─────────────
+    void set(String key, int value) {
+        cfg.updateAndGet(p -> p.with(key, value));
+        if (key.equals("tick")) reschedule();
+    }
+
+    void carThreads(boolean on) {
+        CarThreads ct = carThreads;
+        if (on && ct == null) carThreads = new CarThreads(this);
+        else if (!on && ct != null) { carThreads = null; ct.close(); }
+    }
+
+    void lab(boolean on) {
+        WorkLab w = lab;
+        if (on && w == null) lab = new WorkLab(this);
+        else if (!on && w != null) { lab = null; w.close(); }
     }
 
+    // Aplica 'op' en el primer tick con tiempo de simulacion >= atMs
+    void schedule(long atMs, UnaryOperator<Params> op) { pending.add(new Change(atMs, changeSeq.getAndIncrement(), op)); }
+
     void entries() {
+        int pct = tp.pctExit();
         Integer id = qVic.peek();
         if (id != null) for (int l = 0; l < LANES; l++) if (canPlace(l, E_VIC)) {
-            qVic.poll(); road[l][E_VIC] = new Car(id, E_VIC, l, Math.random() * 100 < pctExit); enVic++; break;
+            qVic.poll(); road[l][E_VIC] = new Car(id, E_VIC, l, rng.nextDouble() * 100 < pct); enVic++; break;
         }
         id = qCen.peek();
         if (id != null) for (int l = 0; l < LANES; l++) if (canPlace(l, E_CENTELLES)) {
-            qCen.poll(); road[l][E_CENTELLES] = new Car(id, E_CENTELLES, l, Math.random() * 100 < pctExit); enCen++; break;
+            qCen.poll(); road[l][E_CENTELLES] = new Car(id, E_CENTELLES, l, rng.nextDouble() * 100 < pct); enCen++; break;
         }
     }
 
     boolean canPlace(int l, int p) {
         if (p < 0 || p >= ROAD_LEN || road[l][p] != null) return false;
-        for (int k = 1; k <= gap; k++) {
+        for (int k = 1, gap = tp.gap(); k <= gap; k++) {
             if (p + k < ROAD_LEN && road[l][p + k] != null) return false;
             if (p - k >= 0 && road[l][p - k] != null) return false;
         }
@@ -131,31 +1913,340 @@ public class VicBarcelonaTrafficSim extends JPanel {
     }
 
     void movement() {
-        for (int l = 0; l < LANES; l++) for (int i = ROAD_LEN - 1; i >= 0; i--) {
+        for (int l = 0; l < LANES; l++) moveLane(l, 0, ROAD_LEN);
+    }
+
+    // Un carril entre las celdas [lo, hi), de aguas abajo hacia arriba; en modo distribuido, la tarea de una zona
+    void moveLane(int l, int lo, int hi) {
+        boolean rabOn = tp.rabOn(), lightsOn = tp.lightsOn(); int rabCap = tp.rabCap();
+        for (int i = hi - 1; i >= lo; i--) {
             Car c = road[l][i]; if (c == null) continue; c.braking = false;
             if (i >= X_BARCELONA) {
-                if (bBcn.consume()) { road[l][i] = null; exBcn++; continue; } c.braking = true;
+                if (bBcn.consume()) { road[l][i] = null; exBcn++; waited(c); continue; } c.braking = true; c.wCell++; starved("Barcelona", c, bBcn);
             }
             if (c.wantsExit && i >= X_GRANOLLERS - 3 && i <= X_GRANOLLERS) {
                 if (rabOn) {
-                    if (rabCars.size() < rabCap) { c.inRab = true; c.rabProg = 0; rabCars.add(c); road[l][i] = null; continue; }
-                    c.braking = true;
+                    if (rabCars.size() < rabCap) { c.inRab = true; c.rabProg = 0; rabCars.add(c); road[l][i] = null; admission(true, c, l, i); waited(c); continue; }
+                    c.braking = true; c.wRab++; admission(false, c, l, i);
                 } else {
-                    if (bGran.consume()) { road[l][i] = null; exGran++; continue; } c.braking = true;
+                    if (bGran.consume()) { road[l][i] = null; exGran++; waited(c); continue; } c.braking = true; c.wCell++; starved("Granollers", c, bGran);
                 }
             }
-            if (lightsOn) for (Light tl : lights) if (tl.red && i < tl.pos && i >= tl.pos - 4) c.braking = true;
+            if (lightsOn && !c.braking) for (Light tl : lights) if (tl.red && i < tl.pos && i >= tl.pos - 4) { c.braking = true; c.wLight++; break; }
             if (!c.braking) {
                 int n = i + 1;
-                if (n < ROAD_LEN && canFwd(l, n)) { road[l][i] = null; c.pos = n; road[l][n] = c; } else c.braking = true;
+                if (n < ROAD_LEN && canFwd(l, n)) { road[l][i] = null; c.pos = n; road[l][n] = c; } else { c.braking = true; c.wCell++; }
             }
             if (c.braking && road[l][i] == c) laneChange(l, i, c);
         }
     }
 
+    // Esperas simuladas del coche que sale de la carretera, para compararlas con las medidas en CarThreads
+    void waited(Car c) {
+        if (gone != null) { gone.add(c); return; }
+        long tickNs = tp.tickMs() * 1_000_000L;
+        simCell.observe(c.wCell * tickNs); simLight.observe(c.wLight * tickNs);
+        if (c.inRab) simRab.observe(c.wRab * tickNs);
+    }
+
+    // ── Motor multi-velocidad (Nagel-Schreckenberg) ──────────────────────
+    // Alternativa a movement() con velocidad por coche: acelera +1 hasta VMAX, se limita al hueco (lider a
+    // gap+1 celdas u obstaculo: semaforo en rojo, salida sin token, rotonda llena), frena 1 al azar con
+    // P_SLOW y avanza v. Actualizacion paralela con la posicion vieja del lider, asi que el orden da igual.
+    // Cada carril se copia a arrays primitivos ordenados por posicion y el paso lo hace nasch().
+    static final int VMAX = 3;
+    static final double P_SLOW = 0.15;
+    static final int ENG_CLASSIC = 0, ENG_NASCH = 1, ENG_IDM = 2;
+    static final String[] ENGINES = {"Clasico (una celda por tick)", "Nagel-Schreckenberg", "IDM + MOBIL (continuo)"};
+    volatile int engine = Math.max(0, Arrays.asList("clasico", "nasch", "idm").indexOf(System.getProperty("sim.engine", "clasico")));
+    int engineNow = ENG_CLASSIC; // motor aplicado, solo lo toca el hilo del tick
+    volatile double idmKmh, idmHead;
+    final int[] nx = new int[ROAD_LEN], nv = new int[ROAD_LEN], nlim = new int[ROAD_LEN], nslow = new int[ROAD_LEN], nwhy = new int[ROAD_LEN];
+    final Car[] ncar = new Car[ROAD_LEN], nchg = new Car[LANES * ROAD_LEN];
+
+    void movementNaSch() {
+        boolean rabOn = tp.rabOn(), lightsOn = tp.lightsOn(); int rabCap = tp.rabCap(), gap = tp.gap(), nc = 0;
+        for (int l = 0; l < LANES; l++) {
+            int n = 0;
+            for (int i = 0; i < ROAD_LEN; i++) {
+                Car c = road[l][i]; if (c == null) continue;
+                int stop = ROAD_LEN - 1, why = 0; // why: 1 ya contado (salida/rotonda), 2 semaforo
+                if (i >= X_BARCELONA) {
+                    if (bBcn.consume()) { road[l][i] = null; exBcn++; waited(c); continue; }
+                    stop = i; why = 1; c.wCell++; starved("Barcelona", c, bBcn);
+                }
+                if (c.wantsExit && i <= X_GRANOLLERS) {
+                    if (i < X_GRANOLLERS - 3) stop = X_GRANOLLERS; // no puede saltarse la ventana de salida
+                    else if (rabOn) {
+                        if (rabCars.size() < rabCap) { c.inRab = true; c.rabProg = 0; c.v = 0; rabCars.add(c); road[l][i] = null; admission(true, c, l, i); waited(c); continue; }
+                        stop = i; why = 1; c.wRab++; admission(false, c, l, i);
+                    } else {
+                        if (bGran.consume()) { road[l][i] = null; exGran++; waited(c); continue; }
+                        stop = i; why = 1; c.wCell++; starved("Granollers", c, bGran);
+                    }
+                }
+                if (lightsOn) for (Light tl : lights) if (tl.red && i < tl.pos && tl.pos - 1 < stop) { stop = tl.pos - 1; if (why == 0) why = 2; }
+                road[l][i] = null;
+                ncar[n] = c; nx[n] = i; nv[n] = c.v; nlim[n] = stop; nwhy[n] = why; nslow[n] = rng.nextDouble() < P_SLOW ? 1 : 0; n++;
+            }
+            for (int k = 0; k + 1 < n; k++) nlim[k] = Math.min(nlim[k], nx[k + 1] - gap - 1);
+            nasch(n, nx, nv, nlim, nslow);
+            for (int k = 0; k < n; k++) {
+                Car c = ncar[k]; int want = Math.min(c.v + 1, VMAX);
+                c.braking = nv[k] == 0 || nv[k] < want - nslow[k];
+                if (nv[k] == 0 && nwhy[k] != 1) { if (nwhy[k] == 2) c.wLight++; else c.wCell++; }
+                c.v = nv[k]; c.pos = nx[k]; road[l][nx[k]] = c; ncar[k] = null;
+                if (c.braking) nchg[nc++] = c;
+            }
+        }
+        // Los cambios de carril van aparte para que ningun coche se mueva dos veces en el mismo tick
+        for (int k = 0; k < nc; k++) { Car c = nchg[k]; nchg[k] = null; if (road[c.lane][c.pos] == c) laneChange(c.lane, c.pos, c); }
+    }
+
+    // Un paso NaSch escalar y sin ramas: solo min/max y sumas sobre int[]
+    static void nasch(int n, int[] x, int[] v, int[] lim, int[] slow) {
+        for (int k = 0; k < n; k++) {
+            int s = Math.max(Math.min(Math.min(v[k] + 1, VMAX), lim[k] - x[k]) - slow[k], 0);
+            v[k] = s; x[k] += s;
+        }
+    }
+
+    // ── Motor continuo: Intelligent Driver Model + cambios de carril MOBIL ──
+    // Posicion (m) y velocidad (m/s) en double[] ordenados por carril: el lider de i es i+1 y el seguidor
+    // i-1; en el carril vecino se encuentran por busqueda binaria. Una celda mide lo que un coche parado mas
+    // su hueco minimo (CELL_M = LEN + S0), asi la densidad de atasco coincide con la de la rejilla. Cada tick
+    // son SUB pasos de DT segundos y tras cada paso basta una insercion para reordenar lo poco que se
+    // desordena. Semaforos en rojo y salidas cerradas son lideres virtuales parados (stop).
+    // road[][] queda como vista rasterizada (un coche por celda) para pintar, grabar y el checkpoint.
+    static final class Idm {
+        static final double V0 = 33.3, T = 1.5, A = 1.0, B = 1.5, S0 = 2.0, LEN = 5.5, CELL_M = LEN + S0;
+        static final double DT = 0.25, B_MAX = 9.0, POLITE = 0.3, A_THR = 0.2, B_SAFE = 4.0;
+        static final int SUB = 2;
+        double[][] x = new double[LANES][64], v = new double[LANES][64], acc = new double[LANES][64], stop = new double[LANES][64];
+        byte[][] why = new byte[LANES][64]; // 1 ya contado (salida/rotonda), 2 parado por semaforo, |4 ya cambio de carril
+        Car[][] car = new Car[LANES][64];
+        final int[] n = new int[LANES];
+
+        // Aceleracion IDM con hueco s al lider y dv = v - vLider (s infinito = via libre)
+        static double idm(double v, double s, double dv) {
+            double ss = S0 + Math.max(0, v * T + v * dv / (2 * Math.sqrt(A * B))), r = v / V0, q = ss / Math.max(s, 0.1);
+            return Math.max(-B_MAX, A * (1 - r * r * r * r - q * q));
+        }
+
+        // Aceleracion del coche i contra su lider y su linea de parada
+        double accel(int l, int i) {
+            double[] xl = x[l], vl = v[l];
+            double a = idm(vl[i], stop[l][i] - xl[i], vl[i]);
+            if (i + 1 < n[l]) a = Math.min(a, idm(vl[i], xl[i + 1] - xl[i] - LEN, vl[i] - vl[i + 1]));
+            return a;
+        }
+
+        // Primer indice con x > p
+        int upper(int l, double p) {
+            int lo = 0, hi = n[l];
+            while (lo < hi) { int m = (lo + hi) >>> 1; if (x[l][m] <= p) lo = m + 1; else hi = m; }
+            return lo;
+        }
+
+        int count() { return n[0] + n[1] + n[2]; }
+
+        void insert(int l, int j, Car c, double xx, double vv) {
+            if (n[l] == x[l].length) {
+                int cap = n[l] * 2;
+                x[l] = Arrays.copyOf(x[l], cap); v[l] = Arrays.copyOf(v[l], cap); acc[l] = Arrays.copyOf(acc[l], cap);
+                stop[l] = Arrays.copyOf(stop[l], cap); why[l] = Arrays.copyOf(why[l], cap); car[l] = Arrays.copyOf(car[l], cap);
+            }
+            int k = n[l] - j;
+            System.arraycopy(x[l], j, x[l], j + 1, k); System.arraycopy(v[l], j, v[l], j + 1, k); System.arraycopy(acc[l], j, acc[l], j + 1, k);
+            System.arraycopy(stop[l], j, stop[l], j + 1, k); System.arraycopy(why[l], j, why[l], j + 1, k); System.arraycopy(car[l], j, car[l], j + 1, k);
+            x[l][j] = xx; v[l][j] = vv; acc[l][j] = 0; stop[l][j] = Double.POSITIVE_INFINITY; why[l][j] = 0; car[l][j] = c; n[l]++;
+        }
+
+        void remove(int l, int i) {
+            int k = --n[l] - i;
+            System.arraycopy(x[l], i + 1, x[l], i, k); System.arraycopy(v[l], i + 1, v[l], i, k); System.arraycopy(acc[l], i + 1, acc[l], i, k);
+            System.arraycopy(stop[l], i + 1, stop[l], i, k); System.arraycopy(why[l], i + 1, why[l], i, k); System.arraycopy(car[l], i + 1, car[l], i, k);
+            car[l][n[l]] = null;
+        }
+
+        // Entra en xe si caben el hueco de seguridad con el lider y con el que viene detras
+        boolean tryEnter(int l, double xe, Car c) {
+            int j = upper(l, xe);
+            double vin = j < n[l] ? Math.min(0.8 * V0, v[l][j]) : 0.8 * V0;
+            if (j < n[l] && x[l][j] - xe - LEN < S0 + vin * T) return false;
+            if (j > 0 && xe - x[l][j - 1] - LEN < S0 + v[l][j - 1] * T) return false;
+            insert(l, j, c, xe, vin);
+            return true;
+        }
+
+        // Un paso: aceleraciones con el estado viejo, integracion balistica y reordenacion por insercion
+        void step() {
+            for (int l = 0; l < LANES; l++) {
+                int m = n[l]; double[] xl = x[l], vl = v[l], al = acc[l];
+                for (int i = 0; i < m; i++) al[i] = accel(l, i);
+                for (int i = 0; i < m; i++) {
+                    double nv = vl[i] + al[i] * DT;
+                    if (nv < 0) { xl[i] -= vl[i] * vl[i] / (2 * al[i]); vl[i] = 0; }
+                    else { xl[i] += vl[i] * DT + 0.5 * al[i] * DT * DT; vl[i] = nv; }
+                }
+                for (int i = 1; i < m; i++) for (int k = i; k > 0 && xl[k - 1] > xl[k]; k--) swap(l, k - 1, k);
+            }
+        }
+
+        void swap(int l, int a, int b) {
+            double t = x[l][a]; x[l][a] = x[l][b]; x[l][b] = t;
+            t = v[l][a]; v[l][a] = v[l][b]; v[l][b] = t;
+            t = acc[l][a]; acc[l][a] = acc[l][b]; acc[l][b] = t;
+            t = stop[l][a]; stop[l][a] = stop[l][b]; stop[l][b] = t;
+            byte w = why[l][a]; why[l][a] = why[l][b]; why[l][b] = w;
+            Car c = car[l][a]; car[l][a] = car[l][b]; car[l][b] = c;
+        }
+
+        // MOBIL simetrico: cambia si gana mas de A_THR (contando POLITE de lo que pierden los demas) y el
+        // nuevo seguidor no tiene que frenar mas de B_SAFE. Se decide carril a carril sobre el estado actual.
+        void changeLanes() {
+            for (int l = 0; l < LANES; l++) for (int i = n[l] - 1; i >= 0; i--) {
+                if ((why[l][i] & 4) != 0) continue; // un cambio por coche y tick
+                Car c = car[l][i]; double xi = x[l][i], vi = v[l][i], ac = accel(l, i);
+                double ao = 0, ato = 0; // seguidor actual: antes y despues de que nos vayamos
+                if (i > 0) {
+                    double xo = x[l][i - 1], vo = v[l][i - 1];
+                    ao = idm(vo, xi - xo - LEN, vo - vi);
+                    ato = i + 1 < n[l] ? idm(vo, x[l][i + 1] - xo - LEN, vo - v[l][i + 1]) : idm(vo, Double.POSITIVE_INFINITY, 0);
+                }
+                int best = -1; double bestGain = A_THR;
+                for (int nl = l - 1; nl <= l + 1; nl += 2) {
+                    if (nl < 0 || nl >= LANES) continue;
+                    int j = upper(nl, xi);
+                    if (j < n[nl] && x[nl][j] - xi < LEN || j > 0 && xi - x[nl][j - 1] < LEN) continue;
+                    double atc = idm(vi, stop[l][i] - xi, vi);
+                    if (j < n[nl]) atc = Math.min(atc, idm(vi, x[nl][j] - xi - LEN, vi - v[nl][j]));
+                    double an = 0, atn = 0;
+                    if (j > 0) {
+                        double xn = x[nl][j - 1], vn = v[nl][j - 1];
+                        atn = idm(vn, xi - xn - LEN, vn - vi);
+                        if (atn < -B_SAFE) continue;
+                        an = j < n[nl] ? idm(vn, x[nl][j] - xn - LEN, vn - v[nl][j]) : idm(vn, Double.POSITIVE_INFINITY, 0);
+                    }
+                    double gain = atc - ac + POLITE * (atn - an + ato - ao);
+                    if (gain > bestGain) { bestGain = gain; best = nl; }
+                }
+                if (best < 0) continue;
+                double st = stop[l][i]; byte w = why[l][i];
+                remove(l, i);
+                int j = upper(best, xi); insert(best, j, c, xi, vi); stop[best][j] = st; why[best][j] = (byte) (w | 4);
+            }
+        }
+    }
+
+    Idm idm;
+
+    // Cambio de motor al empezar el tick: los coches pasan de la rejilla a los arrays continuos y al reves
+    void switchEngine(int to) {
+        if (to == ENG_IDM) {
+            Idm m = idm = new Idm();
+            for (int l = 0; l < LANES; l++) for (int i = 0; i < ROAD_LEN; i++) if (road[l][i] != null)
+                m.insert(l, m.n[l], road[l][i], i * Idm.CELL_M, road[l][i].braking ? 0 : 0.5 * Idm.V0);
+        } else if (engineNow == ENG_IDM) {
+            // Al volver a la rejilla cada carril se coloca de delante hacia atras; los que no caben vuelven a la cola
+            Idm m = idm; idm = null;
+            for (int l = 0; l < LANES; l++) {
+                Arrays.fill(road[l], null);
+                int next = ROAD_LEN;
+                for (int i = m.n[l] - 1; i >= 0; i--) {
+                    Car c = m.car[l][i]; int cell = Math.min((int) (m.x[l][i] / Idm.CELL_M), next - 1);
+                    if (cell < 0) { qVic.add(c.id); enVic--; continue; }
+                    c.pos = cell; c.lane = l; c.v = 0; road[l][cell] = c; next = cell;
+                }
+            }
+        }
+        engineNow = to;
+    }
+
+    // La rejilla se ha reescrito desde fuera (checkpoint, reinicio): el siguiente tick vuelve a importarla.
+    // El estado IDM viejo se descarta sin devolver nada a la cola: el reinicio vacia las colas y restore()
+    // pone despues el estado IDM guardado en el checkpoint.
+    synchronized void gridReplaced() {
+        if (engineNow == ENG_IDM) { idm = null; engineNow = ENG_CLASSIC; }
+        if (zones != null) zones.loaded = false;
+    }
+
+    void entriesIdm() {
+        Idm m = idm; int pct = tp.pctExit();
+        Integer id = qVic.peek();
+        if (id != null) for (int l = 0; l < LANES; l++) {
+            Car c = new Car(id, E_VIC, l, false);
+            if (m.tryEnter(l, 0, c)) { qVic.poll(); c.wantsExit = rng.nextDouble() * 100 < pct; enVic++; break; }
+        }
+        id = qCen.peek();
+        if (id != null) for (int l = 0; l < LANES; l++) {
+            Car c = new Car(id, E_CENTELLES, l, false);
+            if (m.tryEnter(l, E_CENTELLES * Idm.CELL_M, c)) { qCen.poll(); c.wantsExit = rng.nextDouble() * 100 < pct; enCen++; break; }
+        }
+    }
+
+    void movementIdm() {
+        Idm m = idm;
+        boolean rabOn = tp.rabOn(), lightsOn = tp.lightsOn(); int rabCap = tp.rabCap();
+        double bcn = X_BARCELONA * Idm.CELL_M, end = (X_BARCELONA + 1) * Idm.CELL_M;
+        double granLo = (X_GRANOLLERS - 3) * Idm.CELL_M, gran = (X_GRANOLLERS + 1) * Idm.CELL_M;
+        // Salidas y rotonda una vez por tick, como en movement(); de paso, la linea de parada de cada coche
+        for (int l = 0; l < LANES; l++) for (int i = m.n[l] - 1; i >= 0; i--) {
+            Car c = m.car[l][i]; double xi = m.x[l][i], vi = m.v[l][i], st = Double.POSITIVE_INFINITY; byte why = 0;
+            if (xi >= bcn) {
+                if (bBcn.consume()) { m.remove(l, i); exBcn++; waited(c); continue; }
+                why = 1; c.wCell++; starved("Barcelona", c, bBcn);
+            }
+            if (bBcn.tokens < 1) st = end;
+            if (c.wantsExit && xi < gran) {
+                if (xi >= granLo) {
+                    if (rabOn && rabCars.size() < rabCap) { c.inRab = true; c.rabProg = 0; rabCars.add(c); m.remove(l, i); admission(true, c, l, X_GRANOLLERS); waited(c); continue; }
+                    if (!rabOn && bGran.consume()) { m.remove(l, i); exGran++; waited(c); continue; }
+                    why = 1;
+                    if (rabOn) { c.wRab++; admission(false, c, l, X_GRANOLLERS); } else { c.wCell++; starved("Granollers", c, bGran); }
+                }
+                if (rabOn ? rabCars.size() >= rabCap : bGran.tokens < 1) st = gran; // salida cerrada: espera en la ventana
+            }
+            if (lightsOn) for (Light tl : lights) {
+                double sx = tl.pos * Idm.CELL_M; // solo frena si aun puede parar antes de la linea
+                if (tl.red && xi < sx && sx < st && sx - xi > vi * vi / (2 * Idm.B)) { st = sx; if (why == 0) why = 2; }
+            }
+            m.stop[l][i] = st; m.why[l][i] = why;
+        }
+        for (int s = 0; s < Idm.SUB; s++) m.step();
+        m.changeLanes();
+        for (int l = 0; l < LANES; l++) {
+            Arrays.fill(road[l], null);
+            for (int i = m.n[l] - 1, next = ROAD_LEN; i >= 0; i--) { // de delante hacia atras: si dos caen en la misma celda, el de atras retrocede una
+                Car c = m.car[l][i]; double vi = m.v[l][i];
+                c.lane = l; c.pos = Math.min(next - 1, (int) (m.x[l][i] / Idm.CELL_M));
+                if (c.pos >= 0) { road[l][c.pos] = c; next = c.pos; }
+                c.braking = vi < 1 || m.acc[l][i] < -0.5 * Idm.B;
+                int why = m.why[l][i] & 3;
+                if (vi < 1 && why != 1) { if (why == 2) c.wLight++; else c.wCell++; }
+            }
+        }
+    }
+
+    // Densidad continua por segmento (coches / capacidad a densidad de atasco) y velocidad media / V0
+    void recountIdm() {
+        Idm m = idm; Arrays.fill(segD, 0); Arrays.fill(segV, 0);
+        double spd = 0, head = 0; int moving = 0;
+        for (int l = 0; l < LANES; l++) for (int i = 0; i < m.n[l]; i++) {
+            int s = Math.min(segD.length - 1, (int) (m.x[l][i] / Idm.CELL_M) / SEG_SIZE);
+            segD[s]++; segV[s] += m.v[l][i] / Idm.V0; spd += m.v[l][i];
+            if (i + 1 < m.n[l] && m.v[l][i] > 1) { head += m.x[l][i + 1] - m.x[l][i] - Idm.LEN; moving++; }
+        }
+        double cap = SEG_SIZE * Idm.CELL_M * LANES / (Idm.LEN + Idm.S0);
+        for (int s = 0; s < segD.length; s++) { segV[s] = segD[s] > 0 ? segV[s] / segD[s] : 1; segD[s] = Math.min(1, segD[s] / cap); }
+        int n = m.count();
+        carsOn = n + rabCars.size();
+        idmKmh = n == 0 ? 0 : spd / n * 3.6; idmHead = moving == 0 ? 0 : head / moving;
+    }
+
     boolean canFwd(int l, int p) {
         if (p < 0 || p >= ROAD_LEN || road[l][p] != null) return false;
-        for (int k = 1; k <= gap; k++) if (p + k < ROAD_LEN && road[l][p + k] != null) return false;
+        for (int k = 1, gap = tp.gap(); k <= gap; k++) if (p + k < ROAD_LEN && road[l][p + k] != null) return false;
         return true;
     }
 
@@ -177,65 +2268,402 @@ public class VicBarcelonaTrafficSim extends JPanel {
     }
 
     void metrics() {
-        int cnt = 0; Arrays.fill(segD, 0);
+        recount();
+        if (simMs - lastH >= Series.RES[0]) {
+            series.sample[0] = carsOn; series.sample[1] = qVic.size(); series.sample[2] = qCen.size(); series.sample[3] = rabCars.size();
+            series.add(simMs); lastH = simMs;
+        }
+    }
+
+    void recount() {
+        if (idm != null) { recountIdm(); return; }
+        int cnt = 0; Arrays.fill(segD, 0); Arrays.fill(segV, 0);
         for (int l = 0; l < LANES; l++) for (int i = 0; i < ROAD_LEN; i++) if (road[l][i] != null) {
-            cnt++; int s = i / SEG_SIZE; if (s < segD.length) segD[s]++;
+            cnt++; int s = i / SEG_SIZE; if (s < segD.length) { segD[s]++; if (!road[l][i].braking) segV[s]++; }
         }
         cnt += rabCars.size(); carsOn = cnt;
-        for (int s = 0; s < segD.length; s++) segD[s] /= (SEG_SIZE * LANES);
-        long now = System.currentTimeMillis();
-        if (now - lastH >= 600) { histCars[hIdx % HIST] = carsOn; hIdx++; lastH = now; }
+        for (int s = 0; s < segD.length; s++) { segV[s] = segD[s] > 0 ? segV[s] / segD[s] : 1; segD[s] /= (SEG_SIZE * LANES); }
+    }
+
+    // El cuello de botella es la cabeza del atasco mas severo que sigue el JamTracker
+    void bottleneck(long t) {
+        jamTracker.update(segD, segV, t);
+        JamTracker.Jam w = jamTracker.worst();
+        if (w != null) { bnSeg = w.head; bnName = w.moving ? "Onda de atasco km " + (w.head * SEG_SIZE * 70 / ROAD_LEN) : w.zone; }
+        else { bnSeg = -1; bnName = ""; }
+        congestionEvents();
+    }
+
+    // Un evento JFR al nacer y otro al morir cada atasco (Jam.id), no cada vez que se mueve la cabeza
+    // o cambia cual es el peor: eso pasa casi cada tick. La duracion es tiempo simulado.
+    void congestionEvents() {
+        for (JamTracker.Jam j : jamTracker.ended) {
+            CongestionEndEvent e = new CongestionEndEvent();
+            if (e.shouldCommit()) { e.jam = j.id; e.segment = j.head; e.zone = j.zone; e.lasted = j.end - j.start; e.commit(); }
+        }
+        for (JamTracker.Jam j : jamTracker.started) {
+            CongestionStartEvent e = new CongestionStartEvent();
+            if (e.shouldCommit()) { e.jam = j.id; e.segment = j.head; e.zone = j.zone; e.density = j.peak; e.commit(); }
+        }
+    }
+
+    // ── Bus de UI: el motor publica valores inmutables y el EDT los aplica a su ritmo ──
+    // diagnostic() solo sustituye diag cuando cambia el mensaje; uiPump compara referencias una vez por frame.
+    record Diag(String msg, Color color, Color bright) {
+        static final Color WAVE = new Color(255, 110, 90), RAB = new Color(255, 80, 80), BCN = new Color(255, 120, 60),
+            JAM = new Color(255, 160, 40), WARN = new Color(255, 200, 60), IDLE = new Color(150, 150, 180),
+            FLUID = new Color(80, 220, 130), OK = new Color(100, 200, 255);
+        Diag(String msg, Color color) { this(msg, color, color.brighter()); }
+    }
+    static final int FRAME_MS = 33;
+    Snapshot shownSnap; Diag shownDiag;
+
+    void pumpUi() {
+        Snapshot s = snap; Diag d = diag;
+        if (s != shownSnap) { shownSnap = s; view.repaint(); }
+        if (d != shownDiag && lAdv != null) {
+            shownDiag = d;
+            lAdv.setText("<html><body style='width:200px;padding:5px;'><b>CONSEJOS:</b><br>" + d.msg() + "</body></html>");
+            lAdv.setForeground(d.color());
+        }
     }
 
-    void bottleneck() {
-        double mx = 0; int ms = -1;
-        for (int s = 0; s < segD.length; s++) if (segD[s] > mx) { mx = segD[s]; ms = s; }
-        if (mx > 0.40 && ms >= 0) {
-            bnSeg = ms; int pos = ms * SEG_SIZE;
-            if (pos >= X_GRANOLLERS - 12 && pos <= X_GRANOLLERS + 4) bnName = "Rotonda Granollers";
-            else if (pos >= X_BARCELONA - 8) bnName = "Salida Barcelona";
-            else if (pos >= E_CENTELLES - 4 && pos <= E_CENTELLES + 8) bnName = "Entrada Centelles";
-            else bnName = "Tramo km " + (pos * 70 / ROAD_LEN);
-        } else { bnSeg = -1; bnName = ""; }
+    void publishDiag(String msg, Color color) {
+        Diag d = diag;
+        if (d.color() != color || !d.msg().equals(msg)) diag = new Diag(msg, color);
     }
 
     void diagnostic() {
-        double inR = entryVic + entryCen;
-        double outR = exitBcn + (rabOn ? Math.min(exitGran, rabExit) : exitGran);
-        if (bnSeg >= 0) {
+        Params p = tp;
+        double inR = p.entryVic() + p.entryCen();
+        double outR = p.exitBcn() + (p.rabOn() ? Math.min(p.exitGran(), p.rabExit()) : p.exitGran());
+        JamTracker.Jam w = jamTracker.worst();
+        int nJams = jamTracker.jams.size();
+        String more = nJams > 1 ? " (" + nJams + " atascos activos)" : "";
+        ContentionProbe cp = probe; ContentionProbe.Sample cs = cp == null ? null : cp.last;
+        if (zonesLost != null && simMs - zonesLostMs < Zones.LOST_DIAG_MS) {
+            publishDiag(zonesLost, Diag.RAB);
+        } else if (cs != null && cs.blocked() > ContentionProbe.DIAG_MS) {
+            publishDiag(String.format("CONTENTION REAL en la JVM: %.0f ms/s bloqueados (EDT %.0f, sched %.0f), sobre todo en el monitor %s. "
+                + "Los synchronized de la propia app frenan los frames.", cs.blocked(), cs.blockedMs()[1], cs.blockedMs()[0], cs.worst()), Diag.RAB);
+        } else if (w != null && w.moving) {
+            publishDiag("ONDA DE ATASCO salida de " + w.zone + ", retrocede a " + Math.round(w.speedKmh) + " km/h" + more
+                    + ". La espera se propaga hacia atras como una cola de threads bloqueados.", Diag.WAVE);
+        } else if (bnSeg >= 0) {
             int pos = bnSeg * SEG_SIZE;
             if (pos >= X_GRANOLLERS - 12 && pos <= X_GRANOLLERS + 4) {
-                diagMsg = "ATASCO en ROTONDA! El bloque synchronized tiene demasiada contention. Sube capacidad o baja entradas.";
-                diagColor = new Color(255, 80, 80);
+                publishDiag("ATASCO en ROTONDA" + more + "! El bloque synchronized tiene demasiada contention. Sube capacidad o baja entradas.", Diag.RAB);
             } else if (pos >= X_BARCELONA - 8) {
-                diagMsg = "ATASCO en BARCELONA! El consumidor de threads es lento. Sube la tasa de salida de Barcelona.";
-                diagColor = new Color(255, 120, 60);
+                publishDiag("ATASCO en BARCELONA" + more + "! El consumidor de threads es lento. Sube la tasa de salida de Barcelona.", Diag.BCN);
             } else {
-                diagMsg = "CONGESTION en " + bnName + "! Los threads compiten por el recurso. Reduce entradas o aumenta salidas.";
-                diagColor = new Color(255, 160, 40);
+                publishDiag("CONGESTION en " + bnName + more + "! Los threads compiten por el recurso. Reduce entradas o aumenta salidas.", Diag.JAM);
             }
         } else if (inR > outR * 1.3) {
-            diagMsg = "CUIDADO: Entran " + (int)inR + "/min pero salen ~" + (int)outR + "/min. Productor > Consumidor!";
-            diagColor = new Color(255, 200, 60);
+            publishDiag("CUIDADO: Entran " + (int)inR + "/min pero salen ~" + (int)outR + "/min. Productor > Consumidor!", Diag.WARN);
         } else if (carsOn == 0 && inR == 0) {
-            diagMsg = "Carretera vacia. Sube las entradas para empezar la simulacion.";
-            diagColor = new Color(150, 150, 180);
+            publishDiag("Carretera vacia. Sube las entradas para empezar la simulacion.", Diag.IDLE);
         } else if (carsOn < 10) {
-            diagMsg = "Trafico fluido. Sin contention significativa. Los threads circulan libremente.";
-            diagColor = new Color(80, 220, 130);
+            publishDiag("Trafico fluido. Sin contention significativa. Los threads circulan libremente.", Diag.FLUID);
         } else {
-            diagMsg = "Trafico equilibrado. Entrada " + (int)inR + "/min alineada con salida. Sistema estable.";
-            diagColor = new Color(100, 200, 255);
+            publishDiag("Trafico equilibrado. Entrada " + (int)inR + "/min alineada con salida. Sistema estable.", Diag.OK);
         }
-        if (lAdv != null) {
-            String html = "<html><body style='width:200px;padding:5px;'><b>CONSEJOS:</b><br>" + diagMsg + "</body></html>";
-            SwingUtilities.invokeLater(() -> { lAdv.setText(html); lAdv.setForeground(diagColor); });
+    }
+
+    // ── Endpoint /metrics en formato Prometheus (-Dsim.metrics.port=9464) ──
+    HttpServer serveMetrics(int port) throws IOException {
+        HttpServer srv = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        srv.createContext("/metrics", ex -> {
+            byte[] body = prometheus().getBytes(StandardCharsets.UTF_8);
+            ex.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            ex.sendResponseHeaders(200, body.length);
+            try (OutputStream os = ex.getResponseBody()) { os.write(body); }
+        });
+        srv.setExecutor(Executors.newSingleThreadExecutor(r -> { Thread t = new Thread(r, "sim-metrics"); t.setDaemon(true); return t; }));
+        srv.start();
+        return srv;
+    }
+
+    // Solo lee la ultima Snapshot publicada: nunca toma el monitor de tick()
+    String prometheus() {
+        Snapshot s = snap;
+        StringBuilder sb = new StringBuilder(2048);
+        if (s != null) {
+            metric(sb, "trafficsim_ticks_total", "counter", "Ticks de simulacion ejecutados");
+            sb.append("trafficsim_ticks_total ").append(s.tick).append('\n');
+            metric(sb, "trafficsim_sim_seconds", "gauge", "Tiempo simulado en segundos");
+            sb.append("trafficsim_sim_seconds ").append(s.simSec).append('\n');
+            metric(sb, "trafficsim_ticks_per_second", "gauge", "Ticks por segundo conseguidos y objetivo");
+            sb.append("trafficsim_ticks_per_second{kind=\"achieved\"} ").append(s.tps).append('\n');
+            sb.append("trafficsim_ticks_per_second{kind=\"target\"} ").append(s.targetTps).append('\n');
+            metric(sb, "trafficsim_ticks_dropped_total", "counter", "Ticks descartados por ir con retraso");
+            sb.append("trafficsim_ticks_dropped_total ").append(s.lostTicks).append('\n');
+            metric(sb, "trafficsim_cars_on_road", "gauge", "Coches en carretera y rotonda");
+            sb.append("trafficsim_cars_on_road ").append(s.carsOn).append('\n');
+            metric(sb, "trafficsim_entered_total", "counter", "Coches entrados por entrada");
+            sb.append("trafficsim_entered_total{entry=\"vic\"} ").append(s.enVic).append('\n');
+            sb.append("trafficsim_entered_total{entry=\"centelles\"} ").append(s.enCen).append('\n');
+            metric(sb, "trafficsim_exited_total", "counter", "Coches salidos por salida");
+            sb.append("trafficsim_exited_total{exit=\"granollers\"} ").append(s.exGran).append('\n');
+            sb.append("trafficsim_exited_total{exit=\"barcelona\"} ").append(s.exBcn).append('\n');
+            metric(sb, "trafficsim_queue_depth", "gauge", "Coches esperando para entrar");
+            sb.append("trafficsim_queue_depth{entry=\"vic\"} ").append(s.qVic).append('\n');
+            sb.append("trafficsim_queue_depth{entry=\"centelles\"} ").append(s.qCen).append('\n');
+            metric(sb, "trafficsim_queue_depth_max", "gauge", "Maximo historico de la cola");
+            sb.append("trafficsim_queue_depth_max{entry=\"vic\"} ").append(s.maxQV).append('\n');
+            sb.append("trafficsim_queue_depth_max{entry=\"centelles\"} ").append(s.maxQC).append('\n');
+            metric(sb, "trafficsim_roundabout_cars", "gauge", "Coches dentro de la rotonda");
+            sb.append("trafficsim_roundabout_cars ").append(s.rab).append('\n');
+            metric(sb, "trafficsim_roundabout_capacity", "gauge", "Capacidad de la rotonda");
+            sb.append("trafficsim_roundabout_capacity ").append(s.rabCap).append('\n');
+            metric(sb, "trafficsim_segment_density", "gauge", "Ocupacion por segmento (0-1)");
+            for (int i = 0; i < s.segD.length; i++)
+                sb.append("trafficsim_segment_density{segment=\"").append(i).append("\"} ").append(s.segD[i]).append('\n');
+            metric(sb, "trafficsim_light_red", "gauge", "1 si el semaforo esta en rojo");
+            for (int i = 0; i < s.red.length; i++)
+                sb.append("trafficsim_light_red{light=\"").append(label(lights.get(i).name)).append("\"} ").append(s.red[i] ? 1 : 0).append('\n');
+            // sin etiqueta: con el nombre como label cada cambio de cuello de botella abriria otra serie
+            metric(sb, "trafficsim_bottleneck_segment", "gauge", "Segmento del cuello de botella actual (-1 = ninguno)");
+            sb.append("trafficsim_bottleneck_segment ").append(s.bnSeg).append('\n');
+            JamTracker.Report j = s.jams;
+            metric(sb, "trafficsim_jams", "gauge", "Atascos activos");
+            sb.append("trafficsim_jams ").append(j.jams).append('\n');
+            metric(sb, "trafficsim_jam_upstream_speed_kmh", "gauge", "Velocidad a la que retrocede la cola de cada atasco");
+            for (int i = 0; i < j.jams; i++)
+                sb.append("trafficsim_jam_upstream_speed_kmh{head=\"").append(j.head[i]).append("\",tail=\"").append(j.tail[i])
+                  .append("\",moving=\"").append(j.moving[i]).append("\"} ").append(j.speed[i]).append('\n');
+            metric(sb, "trafficsim_bottleneck_jams_total", "counter", "Atascos terminados por zona de origen");
+            for (int i = 0; i < j.zones.length; i++)
+                sb.append("trafficsim_bottleneck_jams_total{zone=\"").append(label(j.zones[i])).append("\"} ").append(j.zoneJams[i]).append('\n');
+            metric(sb, "trafficsim_bottleneck_seconds_total", "counter", "Tiempo acumulado de atasco por zona de origen");
+            for (int i = 0; i < j.zones.length; i++)
+                sb.append("trafficsim_bottleneck_seconds_total{zone=\"").append(label(j.zones[i])).append("\"} ").append(j.zoneMs[i] / 1e3).append('\n');
+        }
+        ContentionProbe cp = probe;
+        if (cp != null) cp.export(sb);
+        WorkLab w = lab;
+        if (w != null) {
+            WorkLab.Stats ls = w.stats;
+            metric(sb, "trafficsim_lab_throughput", "gauge", "Tareas completadas por segundo en el laboratorio executor");
+            sb.append("trafficsim_lab_throughput ").append(ls.perSec()).append('\n');
+            metric(sb, "trafficsim_lab_queue_depth", "gauge", "Tareas en la cola del ThreadPoolExecutor");
+            sb.append("trafficsim_lab_queue_depth ").append(ls.queue()).append('\n');
+            metric(sb, "trafficsim_lab_rejected_total", "counter", "Tareas rechazadas con la cola llena");
+            sb.append("trafficsim_lab_rejected_total ").append(ls.rejected()).append('\n');
+            metric(sb, "trafficsim_lab_latency_seconds", "summary", "Latencia de execute() a fin de tarea (ultimo segundo)");
+            sb.append("trafficsim_lab_latency_seconds{quantile=\"0.5\"} ").append(ls.p50() / 1e3).append('\n');
+            sb.append("trafficsim_lab_latency_seconds{quantile=\"0.95\"} ").append(ls.p95() / 1e3).append('\n');
+            sb.append("trafficsim_lab_latency_seconds{quantile=\"0.99\"} ").append(ls.p99() / 1e3).append('\n');
+        }
+        histogram(sb, "trafficsim_tick_duration_seconds", "Duracion de tick()", tickHist);
+        histogram(sb, "trafficsim_paint_duration_seconds", "Duracion de paintComponent()", paintHist);
+        return sb.toString();
+    }
+
+    static void metric(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    // Valor de etiqueta en el formato de texto de Prometheus: solo hay que escapar \, " y el salto de linea
+    static String label(String v) { return v.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"); }
+
+    static void histogram(StringBuilder sb, String name, String help, Hist h) {
+        metric(sb, name, "histogram", help);
+        long acc = 0;
+        for (int b = 0; b < h.le.length; b++) {
+            acc += h.counts.get(b);
+            sb.append(name).append("_bucket{le=\"").append(h.le[b] / 1e6).append("\"} ").append(acc).append('\n');
+        }
+        acc += h.counts.get(h.le.length);
+        sb.append(name).append("_bucket{le=\"+Inf\"} ").append(acc).append('\n');
+        sb.append(name).append("_sum ").append(h.sumUs.sum() / 1e6).append('\n');
+        sb.append(name).append("_count ").append(acc).append('\n');
+    }
+
+    // ── Checkpoint binario del estado completo ────────────────────────────
+    // Formato big-endian: magic, version, parametros, motor, reloj, contadores, RNGs, tokens de los
+    // buckets, fase de cada semaforo, coches (con su velocidad NaSch) en carretera y rotonda y ids de
+    // las colas y, si el motor IDM esta activo, su estado continuo: por carril y en orden, cada coche con
+    // su posicion y velocidad reales (road solo es la vista rasterizada). Se siguen leyendo los de
+    // version 2 (sin motor ni velocidades) y 3 (sin estado IDM: se reimporta desde la rejilla).
+    // Los tiempos de reloj de pared se guardan como "ms transcurridos" para rehacerlos al cargar.
+    static final long CKPT_MAGIC = 0x31504b434d495354L; // "TSIMCKP1"
+    static final int CKPT_VERSION = 4;
+
+    void saveCheckpoint(Path file) throws IOException {
+        ByteBuffer b;
+        synchronized (this) {
+            Integer[] qv = qVic.toArray(new Integer[0]), qc = qCen.toArray(new Integer[0]);
+            List<Car> cars = new ArrayList<>();
+            for (int l = 0; l < LANES; l++) for (int i = 0; i < ROAD_LEN; i++) if (road[l][i] != null) cars.add(road[l][i]);
+            Car[] rab; synchronized (rabCars) { rab = rabCars.toArray(new Car[0]); }
+            Idm m = engineNow == ENG_IDM ? idm : null;
+            b = ByteBuffer.allocate(512 + lights.size() * 9 + series.bytes() + (cars.size() + rab.length) * 13 + (qv.length + qc.length) * 4
+                                    + (m == null ? 0 : m.count() * 28));
+            b.putLong(CKPT_MAGIC).putInt(CKPT_VERSION);
+            int[] pv = cfg.get().values();
+            for (int i = 0; i < 9; i++) b.putInt(pv[i]);
+            b.put((byte) pv[9]).put((byte) pv[10]).put((byte) engine);
+            b.putLong(simMs).putLong(tickNo).putInt(idGen.get());
+            for (long v : new long[]{exGran, exBcn, enVic, enCen, maxQV, maxQC}) b.putLong(v);
+            b.putLong(rng.get()).putLong(rVic.get()).putLong(rCen.get());
+            b.putDouble(bGran.tokens).putDouble(bBcn.tokens).putDouble(bRab.tokens);
+            b.putInt(lights.size());
+            for (Light l : lights) b.put((byte) (l.red ? 1 : 0)).putLong(simMs - l.last);
+            series.write(b);
+            b.putInt(cars.size()); for (Car c : cars) { putCar(b, c); b.put((byte) c.v); }
+            b.putInt(rab.length);  for (Car c : rab) { putCar(b, c); b.put((byte) c.v); }
+            b.putInt(qv.length); for (Integer id : qv) b.putInt(id);
+            b.putInt(qc.length); for (Integer id : qc) b.putInt(id);
+            b.put((byte) (m == null ? 0 : 1));
+            if (m != null) for (int l = 0; l < LANES; l++) {
+                b.putInt(m.n[l]);
+                for (int i = 0; i < m.n[l]; i++) { putCar(b, m.car[l][i]); b.putDouble(m.x[l][i]).putDouble(m.v[l][i]); }
+            }
+        }
+        b.flip();
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (b.hasRemaining()) ch.write(b);
+        }
+    }
+
+    static void putCar(ByteBuffer b, Car c) {
+        b.putInt(c.id).put((byte) c.lane).putShort((short) c.pos)
+         .put((byte) ((c.braking ? 1 : 0) | (c.wantsExit ? 2 : 0) | (c.inRab ? 4 : 0))).putInt(c.rabProg);
+    }
+
+    static Car getCar(ByteBuffer b) {
+        int id = b.getInt(), lane = b.get(), pos = b.getShort(), f = b.get();
+        Car c = new Car(id, pos, lane, (f & 2) != 0);
+        c.braking = (f & 1) != 0; c.inRab = (f & 4) != 0; c.rabProg = b.getInt();
+        return c;
+    }
+
+    // Carga mapeando el fichero: varias simulaciones pueden arrancar del mismo checkpoint
+    void loadCheckpoint(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            restore(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+        }
+    }
+
+    // Primero se decodifica todo a variables locales y solo si el fichero entero es valido se toca el
+    // estado: un checkpoint truncado o corrupto deja la simulacion como estaba.
+    synchronized void restore(ByteBuffer b) throws IOException {
+        int[] pv = new int[11]; long sMs, tNo; int id0; long[] cnt = new long[6], seeds = new long[3]; double[] tok = new double[3];
+        boolean[] red; long[] el; Series ser = new Series(); Car[][] grid = new Car[LANES][ROAD_LEN]; List<Car> rab = new ArrayList<>();
+        int[] qv, qc; int eng = -1; Idm m = null;
+        try {
+            int ver = b.getLong() == CKPT_MAGIC ? b.getInt() : -1;
+            if (ver < 2 || ver > CKPT_VERSION) throw new IOException("no es un checkpoint del simulador");
+            int carBytes = ver >= 3 ? 13 : 12;
+            for (int i = 0; i < 9; i++) pv[i] = b.getInt();
+            pv[9] = b.get(); pv[10] = b.get();
+            if (ver >= 3 && ((eng = b.get()) < 0 || eng >= ENGINES.length)) throw new IOException("motor desconocido: " + eng);
+            sMs = b.getLong(); tNo = b.getLong(); id0 = b.getInt();
+            for (int i = 0; i < cnt.length; i++) cnt[i] = b.getLong();
+            for (int i = 0; i < seeds.length; i++) seeds[i] = b.getLong();
+            for (int i = 0; i < tok.length; i++) tok[i] = b.getDouble();
+            int nl = count(b, 9); red = new boolean[nl]; el = new long[nl];
+            for (int i = 0; i < nl; i++) { red[i] = b.get() != 0; el[i] = b.getLong(); }
+            ser.read(b);
+            for (int n = count(b, carBytes); n > 0; n--) {
+                Car c = getCar(b); if (ver >= 3) c.v = Math.max(0, Math.min(VMAX, b.get()));
+                if (c.lane < 0 || c.lane >= LANES || c.pos < 0 || c.pos >= ROAD_LEN || grid[c.lane][c.pos] != null)
+                    throw new IOException("coche " + c.id + " fuera de la carretera (carril " + c.lane + ", celda " + c.pos + ")");
+                grid[c.lane][c.pos] = c;
+            }
+            for (int n = count(b, carBytes); n > 0; n--) { Car c = getCar(b); if (ver >= 3) c.v = Math.max(0, Math.min(VMAX, b.get())); rab.add(c); }
+            qv = new int[count(b, 4)]; for (int i = 0; i < qv.length; i++) qv[i] = b.getInt();
+            qc = new int[count(b, 4)]; for (int i = 0; i < qc.length; i++) qc[i] = b.getInt();
+            if (ver >= 4 && b.get() != 0) {
+                if (eng != ENG_IDM) throw new IOException("estado IDM con otro motor");
+                m = new Idm();
+                for (int l = 0; l < LANES; l++) for (int n = count(b, 28); n > 0; n--) {
+                    Car c = getCar(b); double xx = b.getDouble(), vv = b.getDouble();
+                    if (c.lane != l || !Double.isFinite(xx) || !(vv >= 0) || m.n[l] > 0 && xx < m.x[l][m.n[l] - 1])
+                        throw new IOException("estado IDM corrupto en el coche " + c.id);
+                    // el mismo objeto que la vista rasterizada; los que aun no tienen celda solo viven aqui
+                    Car g = c.pos >= 0 && c.pos < ROAD_LEN ? grid[l][c.pos] : null;
+                    m.insert(l, m.n[l], g != null && g.id == c.id ? g : c, xx, vv);
+                }
+            }
+        } catch (BufferUnderflowException e) { throw new IOException("checkpoint truncado", e); }
+
+        cfg.set(tp = Params.of(pv));
+        simMs = sMs; tickNo = tNo; idGen.set(id0);
+        exGran = cnt[0]; exBcn = cnt[1]; enVic = cnt[2]; enCen = cnt[3]; maxQV = cnt[4]; maxQC = cnt[5];
+        rng.set(seeds[0]); rVic.set(seeds[1]); rCen.set(seeds[2]);
+        bGran.tokens = tok[0]; bBcn.tokens = tok[1]; bRab.tokens = tok[2];
+        for (int i = 0; i < Math.min(red.length, lights.size()); i++) { lights.get(i).red = red[i]; lights.get(i).last = simMs - el[i]; }
+        series.copyFrom(ser); lastH = simMs;
+        for (int l = 0; l < LANES; l++) System.arraycopy(grid[l], 0, road[l], 0, ROAD_LEN);
+        synchronized (rabCars) { rabCars.clear(); rabCars.addAll(rab); }
+        qVic.clear(); for (int id : qv) qVic.add(id);
+        qCen.clear(); for (int id : qc) qCen.add(id);
+        qvLen = qv.length; qcLen = qc.length;
+        if (eng >= 0) engine = eng;
+        gridReplaced();
+        if (m != null) { idm = m; engineNow = ENG_IDM; }
+        simSec = simMs / 1000;
+        metrics(); bottleneck(simMs);
+    }
+
+    // Numero de elementos de 'size' bytes que sigue; no puede haber mas de los que caben en lo que queda
+    static int count(ByteBuffer b, int size) throws IOException {
+        int n = b.getInt();
+        if (n < 0 || n > b.remaining() / size) throw new IOException("checkpoint corrupto: " + n + " elementos");
+        return n;
+    }
+
+    // ── Visor de grabaciones (-Dsim.replay=fichero) ───────────────────────
+    // Vuelca un frame decodificado en los campos que lee paintComponent()
+    synchronized void show(int[] cells, int[] scal, int[] rab, int nRab) {
+        for (int l = 0; l < LANES; l++) for (int i = 0; i < ROAD_LEN; i++) {
+            int v = cells[l * ROAD_LEN + i];
+            if (v == 0) { road[l][i] = null; continue; }
+            Car c = new Car(v >>> 2, i, l, (v & 2) != 0); c.braking = (v & 1) != 0; road[l][i] = c;
+        }
+        synchronized (rabCars) { rabCars.clear(); for (int k = 0; k < nRab; k++) { Car c = new Car(rab[k], X_GRANOLLERS, 0, true); c.inRab = true; rabCars.add(c); } }
+        simMs = scal[S_TMS]; simSec = simMs / 1000; qvLen = scal[S_QV]; qcLen = scal[S_QC]; maxQV = scal[S_MAXQV]; maxQC = scal[S_MAXQC];
+        enVic = scal[S_ENVIC]; enCen = scal[S_ENCEN]; exGran = scal[S_EXGRAN]; exBcn = scal[S_EXBCN];
+        for (int k = 0; k < lights.size(); k++) lights.get(k).red = (scal[S_FLAGS] & (4 << k)) != 0;
+        cfg.set(tp = new Params(scal[S_VIC], scal[S_CEN], scal[S_GRAN], scal[S_BCN], tp.gap(), tp.tickMs(), scal[S_RABCAP],
+                                scal[S_RABEXIT], scal[S_PCT], (scal[S_FLAGS] & 1) != 0, (scal[S_FLAGS] & 2) != 0));
+        recount(); bottleneck(scal[S_TMS]); diagnostic();
+    }
+
+    // ── Visor en vivo (-Dsim.attach=fichero publicado con -Dsim.live) ──────
+    // Sin pantalla: una linea por segundo con lo que haya publicado la simulacion
+    static void tailLive(Path file) throws IOException, InterruptedException {
+        try (LiveView.Reader rd = new LiveView.Reader(file)) {
+            for (;;) {
+                if (rd.poll()) {
+                    int[] sc = rd.scal; int on = 0;
+                    for (int v : rd.cells) if (v != 0) on++;
+                    System.out.printf("t=%ds tick=%d coches=%d colas=%d/%d rotonda=%d/%d salidas G=%d B=%d%n", sc[S_TMS] / 1000, rd.tick, on,
+                                      sc[S_QV], sc[S_QC], rd.nRab, sc[S_RABCAP], sc[S_EXGRAN], sc[S_EXBCN]);
+                }
+                Thread.sleep(1000);
+            }
         }
     }
 
     // ── Panel educativo: actualiza el JTextPane inferior ──────────────────
+    // Los sliders llaman aqui en cada ChangeEvent; solo se guarda el ultimo valor y un Timer lo pinta
+    // como mucho cada EDU_MS, asi un arrastre no re-parsea el HTML decenas de veces.
     void explainAction(String param, int value) {
         if (eduPane == null) return;
+        synchronized (eduDocs) { eduParam = param; eduValue = value; }
+        if (!view.eduTimer.isRunning()) view.eduTimer.start();
+    }
+
+    static final char DYN_ON = '\uE000', DYN_OFF = '\uE001';
+    static String dyn(Object o) { return DYN_ON + String.valueOf(o) + DYN_OFF; }
+
+    String eduHtml(String param, int value) {
+        Params p = cfg.get();
+        int entryVic = p.entryVic(), entryCen = p.entryCen(), exitGran = p.exitGran(), exitBcn = p.exitBcn();
+        int rabCap = p.rabCap(), pctExit = p.pctExit();
 
         String titulo, queEs, siSubes, siBajas, codigoJava;
         Color accentColor;
@@ -244,7 +2672,7 @@ public class VicBarcelonaTrafficSim extends JPanel {
             case "vic":
                 titulo     = "Entrada Vic  —  PRODUCTOR de threads";
                 accentColor = new Color(70, 200, 120);
-                queEs      = "Vic genera nuevos threads (coches) al sistema a razon de " + value + "/min. "
+                queEs      = "Vic genera nuevos threads (coches) al sistema a razon de " + dyn(value) + "/min. "
                            + "En programacion concurrente es el PRODUCTOR del patron Producer-Consumer: "
                            + "una fuente continua de trabajo que llena una cola (BlockingQueue). "
                            + "Si el productor es mas rapido que el consumidor, la cola crece indefinidamente.";
@@ -259,9 +2687,9 @@ public class VicBarcelonaTrafficSim extends JPanel {
                 titulo     = "Entrada Centelles  —  SEGUNDO PRODUCTOR en paralelo";
                 accentColor = new Color(70, 160, 230);
                 queEs      = "Centelles es un segundo hilo productor independiente que genera threads en paralelo a Vic. "
-                           + "La suma de ambos (Vic + Centelles = " + (entryVic + value) + "/min) es la carga total del sistema. "
+                           + "La suma de ambos (Vic + Centelles = " + dyn((entryVic + value)) + "/min) es la carga total del sistema. "
                            + "Ambos productores comparten la misma cola y el mismo recurso sin coordinacion explicita entre ellos.";
-                siSubes    = "La carga total aumenta a " + (entryVic + value) + "/min. "
+                siSubes    = "La carga total aumenta a " + dyn((entryVic + value)) + "/min. "
                            + "Dos productores rapidos contra consumidores lentos aceleran la saturacion. "
                            + "Prueba: Vic al maximo + Centelles al maximo = colapso garantizado.";
                 siBajas    = "Reduces presion sobre el sistema. Con Centelles a 0, "
@@ -274,16 +2702,16 @@ public class VicBarcelonaTrafficSim extends JPanel {
                 accentColor = new Color(220, 80, 75);
                 queEs      = "Barcelona absorbe el grueso del trafico: los threads que NO van a la rotonda. "
                            + "Representa el ThreadPoolExecutor principal de la aplicacion. "
-                           + "Su velocidad (" + value + "/min) determina cuantas tareas puede completar por unidad de tiempo. "
+                           + "Su velocidad (" + dyn(value) + "/min) determina cuantas tareas puede completar por unidad de tiempo. "
                            + "Si entrada > salida de Barcelona + Granollers, el sistema se satura.";
                 siSubes    = "El pool procesa mas rapido. Menos coches se acumulan al final de la carretera. "
                            + "Equivale a aumentar el numero de worker threads en el pool o reducir el tiempo de proceso. "
-                           + "Con " + value + "/min y entrada de " + (entryVic + entryCen) + "/min: "
-                           + (value + exitGran >= entryVic + entryCen ? "sistema EQUILIBRADO." : "aun insuficiente, necesitas mas salida.");
+                           + "Con " + dyn(value) + "/min y entrada de " + dyn((entryVic + entryCen)) + "/min: "
+                           + dyn(value + exitGran >= entryVic + entryCen ? "sistema EQUILIBRADO." : "aun insuficiente, necesitas mas salida.");
                 siBajas    = "El consumidor se vuelve el cuello de botella. Los threads se acumulan esperando. "
                            + "En produccion: latencia creciente, timeouts, y finalmente RejectedExecutionException "
                            + "cuando la cola del pool se llena.";
-                codigoJava = "ThreadPoolExecutor bcn = new ThreadPoolExecutor(\n    " + Math.max(1,value/10) + ",  // corePoolSize\n    " + Math.max(2,value/5) + ",  // maxPoolSize\n    60L, TimeUnit.SECONDS,\n    new LinkedBlockingQueue<>(1000)\n);";
+                codigoJava = "ThreadPoolExecutor bcn = new ThreadPoolExecutor(\n    " + dyn(Math.max(1,value/10)) + ",  // corePoolSize\n    " + dyn(Math.max(2,value/5)) + ",  // maxPoolSize\n    60L, TimeUnit.SECONDS,\n    new LinkedBlockingQueue<>(1000)\n);";
                 break;
             case "gran": // ACTUALIZADO CON TEXTO EN LENGUAJE NATURAL
                 titulo     = "Salida Granollers  —  Efecto Embotellamiento (Backpressure)";
@@ -293,60 +2721,60 @@ public class VicBarcelonaTrafficSim extends JPanel {
                            + "Es un mecanismo de defensa automatico: el atasco avisa 'hacia atras' de que no cabe nadie mas, "
                            + "evitando que todo el sistema colapse de golpe.";
                 siSubes    = "La rotonda se vacia mas rapido. Menos cola de espera. "
-                           + "Con " + value + "/min en Granollers, "
-                           + (value > exitBcn ? "esta salida absorbe mas que Barcelona." : "Barcelona sigue siendo la salida principal.");
+                           + "Con " + dyn(value) + "/min en Granollers, "
+                           + dyn(value > exitBcn ? "esta salida absorbe mas que Barcelona." : "Barcelona sigue siendo la salida principal.");
                 siBajas    = "La rotonda se llena. Los coches forman cola esperando entrar. "
                            + "Esto simula un consumidor saturado: el backpressure frena a los que entran.";
-                codigoJava = "// Cola acotada = backpressure automatico:\nBlockingQueue<Tarea> rotonda = new ArrayBlockingQueue<>(" + rabCap + ");\n// Si llena, put() bloquea al productor\nrotonda.put(tarea);  // backpressure aqui\n// Consumidor Granollers:\nTarea t = rotonda.take();  // bloquea si vacia";
+                codigoJava = "// Cola acotada = backpressure automatico:\nBlockingQueue<Tarea> rotonda = new ArrayBlockingQueue<>(" + dyn(rabCap) + ");\n// Si llena, put() bloquea al productor\nrotonda.put(tarea);  // backpressure aqui\n// Consumidor Granollers:\nTarea t = rotonda.take();  // bloquea si vacia";
                 break;
 
             case "rabcap": // ACTUALIZADO CON TEXTO EN LENGUAJE NATURAL
-                titulo     = "Rotonda  —  Control de aforo (Maximo " + value + " coches)";
+                titulo     = "Rotonda  —  Control de aforo (Maximo " + dyn(value) + " coches)";
                 accentColor = new Color(190, 140, 255);
-                queEs      = "Funciona como la barrera de un parking. Si solo caben " + value + " coches, "
+                queEs      = "Funciona como la barrera de un parking. Si solo caben " + dyn(value) + " coches, "
                            + "el siguiente tiene que esperar fuera hasta que alguien salga. "
                            + "En programacion, esto evita que demasiadas tareas intenten usar lo mismo a la vez "
                            + "y provoquen un choque o error en el sistema.";
                 siSubes    = "Mas coches pueden estar en la rotonda a la vez. "
                            + "La cola de espera desaparece o se reduce mucho. "
-                           + "Con " + value + " plazas y " + pctExit + "% de desvio, "
-                           + (value >= 10 ? "el flujo sera muy agil." : "puede haber algo de espera.");
+                           + "Con " + dyn(value) + " plazas y " + dyn(pctExit) + "% de desvio, "
+                           + dyn(value >= 10 ? "el flujo sera muy agil." : "puede haber algo de espera.");
                 siBajas    = "El paso se vuelve mas estricto. "
                            + "Con valor 1, es como un puente de un solo carril: solo pasa uno a la vez. "
                            + "Veras la cola crecer visualmente ante la rotonda.";
-                codigoJava = "Semaphore sem = new Semaphore(" + value + ");\n// Coche quiere entrar a la rotonda:\nsem.acquire();    // bloquea si esta llena\ntry {\n    cruzarRotonda();\n} finally {\n    sem.release(); // sale y libera plaza\n}";
+                codigoJava = "Semaphore sem = new Semaphore(" + dyn(value) + ");\n// Coche quiere entrar a la rotonda:\nsem.acquire();    // bloquea si esta llena\ntry {\n    cruzarRotonda();\n} finally {\n    sem.release(); // sale y libera plaza\n}";
                 break;
             case "rabexit":
                 titulo     = "Velocidad salida rotonda  —  duracion del trabajo DENTRO del lock";
                 accentColor = new Color(160, 120, 230);
                 int msOp = 60000 / Math.max(1, value);
-                queEs      = "Determina cuanto tiempo tarda cada thread DENTRO de la seccion critica (~" + msOp + "ms/op). "
+                queEs      = "Determina cuanto tiempo tarda cada thread DENTRO de la seccion critica (~" + dyn(msOp) + "ms/op). "
                            + "Es una de las reglas mas importantes en concurrencia: "
                            + "la seccion critica debe ser LO MAS CORTA POSIBLE. "
                            + "Cuanto mas tiempo este un thread dentro del lock, mas tiempo bloquea a los demas.";
-                siSubes    = "El trabajo dentro del lock es mas rapido (~" + msOp + "ms). "
+                siSubes    = "El trabajo dentro del lock es mas rapido (~" + dyn(msOp) + "ms). "
                            + "Los threads pasan por la rotonda rapidamente, reduciendo la cola de espera. "
                            + "Regla de oro: haz el minimo trabajo posible dentro de synchronized{}.";
-                siBajas    = "El trabajo tarda mas (~" + msOp + "ms por thread). "
+                siBajas    = "El trabajo tarda mas (~" + dyn(msOp) + "ms por thread). "
                            + "Aunque la capacidad de la rotonda sea alta, los threads acumulan tiempo de espera. "
                            + "Un lock lento es tan malo como un lock muy restrictivo.";
-                codigoJava = "synchronized(lock) {\n    // Este bloque tarda ~" + msOp + "ms\n    // Regla: hacer MINIMO trabajo aqui\n    actualizarEstado();  // rapido\n    // NO hacer I/O, NO esperar, NO llamar a metodos lentos\n}";
+                codigoJava = "synchronized(lock) {\n    // Este bloque tarda ~" + dyn(msOp) + "ms\n    // Regla: hacer MINIMO trabajo aqui\n    actualizarEstado();  // rapido\n    // NO hacer I/O, NO esperar, NO llamar a metodos lentos\n}";
                 break;
             case "pct":
                 titulo     = "% Threads desviados  —  probabilidad de usar la seccion critica";
                 accentColor = new Color(140, 100, 210);
-                queEs      = "El " + value + "% de los threads necesitan pasar por la rotonda (seccion critica). "
+                queEs      = "El " + dyn(value) + "% de los threads necesitan pasar por la rotonda (seccion critica). "
                            + "Simula qué fraccion de las tareas requieren acceso a un recurso compartido con lock. "
                            + "Cuanto mayor es este porcentaje, mayor es la CONTENTION en el sistema. "
                            + "La contention es la causa #1 de problemas de rendimiento en sistemas concurrentes.";
                 siSubes    = "Mas threads compiten por el lock de la rotonda. "
-                           + "Con " + value + "% y muchos threads activos, la cola ante la rotonda crece. "
+                           + "Con " + dyn(value) + "% y muchos threads activos, la cola ante la rotonda crece. "
                            + "Esto ilustra por que hay que minimizar el uso de recursos compartidos: "
                            + "cada acceso sincronizado es un punto de serializacion.";
                 siBajas    = "Menos threads necesitan el lock. La mayoria pasa directo a Barcelona sin parar. "
-                           + "Con " + value + "%, la contention es baja y el sistema fluye libremente. "
+                           + "Con " + dyn(value) + "%, la contention es baja y el sistema fluye libremente. "
                            + "Principio clave: disenar para minimizar el estado compartido.";
-                codigoJava = "// Solo el " + value + "% de tareas necesitan recurso compartido:\nif (Math.random() < " + String.format("%.2f", value / 100.0) + ") {\n    synchronized(recursoCompartido) {\n        leer_o_escribir();\n    }\n}\n// El resto ejecuta sin lock (mas rapido)";
+                codigoJava = "// Solo el " + dyn(value) + "% de tareas necesitan recurso compartido:\nif (Math.random() < " + dyn(String.format("%.2f", value / 100.0)) + ") {\n    synchronized(recursoCompartido) {\n        leer_o_escribir();\n    }\n}\n// El resto ejecuta sin lock (mas rapido)";
                 break;
 
             case "rab":
@@ -354,7 +2782,7 @@ public class VicBarcelonaTrafficSim extends JPanel {
                 accentColor = new Color(190, 140, 255);
                 queEs      = value == 1
                     ? "La rotonda esta activa: los threads deben ADQUIRIR un permiso (Semaphore) para pasar. "
-                      + "Esto serializa el acceso al recurso, garantizando que solo " + rabCap + " threads esten dentro a la vez. "
+                      + "Esto serializa el acceso al recurso, garantizando que solo " + dyn(rabCap) + " threads esten dentro a la vez. "
                       + "Con contention alta veras la cola formarse antes de la entrada."
                     : "La rotonda esta desactivada: paso libre sin lock. "
                       + "Equivale a codigo sin bloque synchronized. Maximo rendimiento, "
@@ -396,7 +2824,7 @@ public class VicBarcelonaTrafficSim extends JPanel {
                 titulo     = "Distancia minima  —  tiempo de CPU por thread (Thread.sleep)";
                 accentColor = new Color(255, 190, 70);
                 queEs      = "La distancia minima entre coches simula el tiempo que un thread ocupa la CPU antes de ceder. "
-                           + "Un gap de " + value + " equivale a ~" + (value * 50) + "ms entre ejecuciones. "
+                           + "Un gap de " + dyn(value) + " equivale a ~" + dyn((value * 50)) + "ms entre ejecuciones. "
                            + "En sistemas reales, los threads alternan entre RUNNABLE y TIMED_WAITING. "
                            + "Thread.sleep() cede la CPU voluntariamente al scheduler del sistema operativo.";
                 siSubes    = "Los threads se espacian mas en la carretera. Menor densidad, mas espacio entre coches. "
@@ -405,21 +2833,21 @@ public class VicBarcelonaTrafficSim extends JPanel {
                 siBajas    = "Los threads se agolpan. Alta densidad en la carretera, mayor probabilidad de congestion. "
                            + "Simula CPU-bound threads que apenas ceden: alta utilizacion pero riesgo de starvation "
                            + "si no hay scheduler preemptivo.";
-                codigoJava = "// Ceder CPU periodicamente:\nwhile (trabajando) {\n    hacerTarea();\n    Thread.sleep(" + (value * 50) + "); // cede CPU ~" + (value*50) + "ms\n    // Estado: TIMED_WAITING durante el sleep\n}";
+                codigoJava = "// Ceder CPU periodicamente:\nwhile (trabajando) {\n    hacerTarea();\n    Thread.sleep(" + dyn((value * 50)) + "); // cede CPU ~" + dyn((value*50)) + "ms\n    // Estado: TIMED_WAITING durante el sleep\n}";
                 break;
             case "tick":
                 titulo     = "Velocidad simulacion  —  frecuencia del scheduler (scheduleAtFixedRate)";
                 accentColor = new Color(200, 160, 60);
-                queEs      = "El tick define cada cuantos ms se ejecuta el bucle principal de simulacion (" + value + "ms). "
+                queEs      = "El tick define cada cuantos ms se ejecuta el bucle principal de simulacion (" + dyn(value) + "ms). "
                            + "Equivale a la frecuencia con que el scheduler del SO reparte tiempo de CPU entre threads. "
                            + "Un tick bajo = alta frecuencia = mas resolución temporal. "
                            + "Un tick alto = scheduler lento = como un sistema muy cargado.";
-                siSubes    = "La simulacion va mas LENTA (tick=" + value + "ms entre frames). "
+                siSubes    = "La simulacion va mas LENTA (tick=" + dyn(value) + "ms entre frames). "
                            + "Puedes ver cada movimiento con mas detalle. "
                            + "Simula un sistema con alta carga de CPU donde el scheduler tarda en dar turno a cada thread.";
                 siBajas    = "La simulacion va mas RAPIDA. Los threads avanzan mas frecuentemente. "
                            + "Con tick muy bajo el sistema se acelera y es mas dificil observar patrones de contention.";
-                codigoJava = "ScheduledExecutorService sched = Executors.newScheduledThreadPool(1);\nsched.scheduleAtFixedRate(\n    this::bucklePrincipal,\n    0,          // inicial delay\n    " + value + ",       // periodo en ms\n    TimeUnit.MILLISECONDS\n);";
+                codigoJava = "ScheduledExecutorService sched = Executors.newScheduledThreadPool(1);\nsched.scheduleAtFixedRate(\n    this::bucklePrincipal,\n    0,          // inicial delay\n    " + dyn(value) + ",       // periodo en ms\n    TimeUnit.MILLISECONDS\n);";
                 break;
 
             default:
@@ -487,21 +2915,16 @@ public class VicBarcelonaTrafficSim extends JPanel {
 
         html.append("</body></html>");
 
-        final String finalHtml = html.toString();
-        SwingUtilities.invokeLater(() -> {
-            eduPane.setText(finalHtml);
-            eduPane.setCaretPosition(0);
-        });
+        return html.toString();
     }
 
     // ── Pintura de la simulacion ───────────────────────────────────────────
-    @Override
-    protected synchronized void paintComponent(Graphics g0) {
-        super.paintComponent(g0);
+    void paintSim(Graphics g0, int W, int H) {
+        Params p = tp;
         Graphics2D g = (Graphics2D) g0;
         g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
         g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_LCD_HRGB);
-        int W = getWidth(), H = getHeight(), M = 20;
+        int M = 20;
         g.setPaint(new GradientPaint(0, 0, new Color(18, 20, 30), W, H, new Color(28, 35, 48)));
         g.fillRect(0, 0, W, H);
 
@@ -512,6 +2935,19 @@ public class VicBarcelonaTrafficSim extends JPanel {
         g.setFont(new Font("SansSerif", Font.PLAIN, 12));
         g.setColor(new Color(150, 150, 170));
         g.drawString(String.format("Tiempo: %02d:%02d", simSec / 60, simSec % 60), W - 130, 22);
+        if (running) {
+            double target = 1000.0 / p.tickMs();
+            g.setColor(tps < target * 0.9 ? new Color(255, 120, 90) : new Color(110, 130, 160));
+            g.drawString(String.format("Ticks/s: %.1f / %.1f", tps, target), W - 300, 22);
+        }
+        Zones zs = zones;
+        if (zs != null) {
+            g.setColor(new Color(110, 130, 160));
+            g.drawString(String.format("Distribuido: %d zonas, %.2f ms/tick de intercambio", zs.n, zs.exchangeMs), W - 600, 22);
+        } else if (engine == ENG_IDM) {
+            g.setColor(new Color(110, 130, 160));
+            g.drawString(String.format("IDM: v media %.0f km/h, hueco medio %.0f m", idmKmh, idmHead), W - 600, 22);
+        }
 
         int roadX = M, roadW = W - 2 * M;
         double cellW = roadW / (double) ROAD_LEN;
@@ -534,7 +2970,7 @@ public class VicBarcelonaTrafficSim extends JPanel {
             FontMetrics fm2 = g.getFontMetrics();
             g.drawString(types[ci], cx - fm2.stringWidth(types[ci]) / 2, 54);
             if (isEntry) {
-                int qs = (ci == 0) ? qVic.size() : qCen.size();
+                int qs = (ci == 0) ? qvLen : qcLen;
                 if (qs > 0) {
                     g.setFont(new Font("Consolas", Font.BOLD, 11));
                     g.setColor(qs > 20 ? new Color(255, 90, 70) : new Color(255, 190, 70));
@@ -573,7 +3009,7 @@ public class VicBarcelonaTrafficSim extends JPanel {
         }
 
         // Semaforos
-        if (lightsOn) for (Light tl : lights) {
+        if (p.lightsOn()) for (Light tl : lights) {
             int sx = (int)(roadX + tl.pos * cellW);
             g.setColor(new Color(25, 25, 30));
             g.fillRoundRect(sx - 7, roadY - 14, 14, 13, 4, 4);
@@ -651,9 +3087,9 @@ public class VicBarcelonaTrafficSim extends JPanel {
         }
 
         // Rotonda
-        if (rabOn) {
+        if (p.rabOn()) {
             int rx = (int)(roadX + X_GRANOLLERS * cellW) + 50, ry = belowY + 30, sz = 44;
-            float fill = (float) rabCars.size() / Math.max(1, rabCap);
+            float fill = (float) rabCars.size() / Math.max(1, p.rabCap());
             g.setColor(new Color(40, 42, 52));
             g.fillOval(rx-sz/2, ry-sz/2, sz, sz);
             g.setColor(heat(fill));
@@ -662,7 +3098,7 @@ public class VicBarcelonaTrafficSim extends JPanel {
             g.setStroke(new BasicStroke(1f));
             g.setFont(new Font("SansSerif", Font.BOLD, 11));
             g.setColor(Color.WHITE);
-            String rt = rabCars.size() + "/" + rabCap;
+            String rt = rabCars.size() + "/" + p.rabCap();
             FontMetrics fmr = g.getFontMetrics();
             g.drawString(rt, rx - fmr.stringWidth(rt) / 2, ry + 4);
             synchronized (rabCars) {
@@ -696,23 +3132,29 @@ public class VicBarcelonaTrafficSim extends JPanel {
             g.drawString("ATASCO", bx - 8, belowY + 16);
         }
 
+        CarThreads ct = carThreads;
+        if (ct != null) drawCarThreads(g, ct, M, belowY + 22, (int)(X_GRANOLLERS * cellW) - 40);
+        ContentionProbe cp = probe;
+        if (cp != null) { int px = (int)(roadX + X_GRANOLLERS * cellW) + 90; drawContention(g, cp.last, px, belowY + 22, W - M - px); }
+
         // Diagnostico
         int diagY = belowY + 58, diagH = 48;
         drawBox(g, M, diagY, W-2*M, diagH);
         g.setFont(new Font("SansSerif", Font.BOLD, 12));
-        g.setColor(diagColor);
+        Diag dg = diag; String dm = dg.msg();
+        g.setColor(dg.color());
         g.drawString("DIAGNOSTICO:", M+10, diagY+16);
         g.setFont(new Font("SansSerif", Font.PLAIN, 11));
-        g.setColor(diagColor.brighter());
+        g.setColor(dg.bright());
         FontMetrics fmd = g.getFontMetrics();
         int maxTW = W - 2*M - 24;
-        if (fmd.stringWidth(diagMsg) > maxTW) {
-            int cut = diagMsg.length();
-            while (cut > 0 && fmd.stringWidth(diagMsg.substring(0, cut)) > maxTW) cut--;
-            cut = diagMsg.lastIndexOf(' ', cut);
-            if (cut > 0) { g.drawString(diagMsg.substring(0, cut), M+10, diagY+32); g.drawString(diagMsg.substring(cut+1), M+10, diagY+44); }
-            else g.drawString(diagMsg, M+10, diagY+32);
-        } else g.drawString(diagMsg, M+10, diagY+32);
+        if (fmd.stringWidth(dm) > maxTW) {
+            int cut = dm.length();
+            while (cut > 0 && fmd.stringWidth(dm.substring(0, cut)) > maxTW) cut--;
+            cut = dm.lastIndexOf(' ', cut);
+            if (cut > 0) { g.drawString(dm.substring(0, cut), M+10, diagY+32); g.drawString(dm.substring(cut+1), M+10, diagY+44); }
+            else g.drawString(dm, M+10, diagY+32);
+        } else g.drawString(dm, M+10, diagY+32);
 
         // Metricas
         int metY = diagY + diagH + 6, metH = 56;
@@ -723,9 +3165,9 @@ public class VicBarcelonaTrafficSim extends JPanel {
         g.drawString("Coches: " + carsOn, c1, metY+17);
         g.drawString("Entrados: " + (enVic+enCen), c1, metY+33);
         g.drawString("Salidos:  " + (exGran+exBcn), c1, metY+49);
-        g.drawString("Cola Vic: " + qVic.size() + " (max " + maxQV + ")", c2, metY+17);
-        g.drawString("Cola Cen: " + qCen.size() + " (max " + maxQC + ")", c2, metY+33);
-        g.drawString("Rotonda:  " + rabCars.size() + "/" + rabCap, c2, metY+49);
+        g.drawString("Cola Vic: " + qvLen + " (max " + maxQV + ")", c2, metY+17);
+        g.drawString("Cola Cen: " + qcLen + " (max " + maxQC + ")", c2, metY+33);
+        g.drawString("Rotonda:  " + rabCars.size() + "/" + p.rabCap(), c2, metY+49);
         g.drawString("Salidos Gran: " + exGran, c3, metY+17);
         g.drawString("Salidos BCN:  " + exBcn, c3, metY+33);
         g.setColor(bnSeg >= 0 ? new Color(255,100,100) : new Color(100,255,100));
@@ -736,29 +3178,99 @@ public class VicBarcelonaTrafficSim extends JPanel {
         drawBox(g, M, gY, gW, gH);
         g.setFont(new Font("SansSerif", Font.PLAIN, 9));
         g.setColor(new Color(130, 130, 150));
-        g.drawString("Densidad por zona", M+6, gY+11);
-        for (int s = 0; s < segD.length; s++) {
-            int bx = M+4+(int)((gW-8.0)*s/segD.length), bw = Math.max(2,(int)((gW-8.0)/segD.length)-1), bh = (int)(segD[s]*(gH-16));
-            g.setColor(heat((float) segD[s]));
-            g.fillRect(bx, gY+gH-bh-2, bw, bh);
+        densRect.setBounds(M, gY, gW, gH);
+        if (spaceTime) {
+            g.drawString("Espacio-tiempo (Vic abajo, BCN arriba; clic = densidad)", M+6, gY+11);
+            drawSpaceTime(g, M+4, gY+13, gW-8, gH-15);
+        } else {
+            g.drawString("Densidad por zona (clic = espacio-tiempo)", M+6, gY+11);
+            for (int s = 0; s < segD.length; s++) {
+                int bx = M+4+(int)((gW-8.0)*s/segD.length), bw = Math.max(2,(int)((gW-8.0)/segD.length)-1), bh = (int)(segD[s]*(gH-16));
+                g.setColor(heat((float) segD[s]));
+                g.fillRect(bx, gY+gH-bh-2, bw, bh);
+            }
         }
         int g2X = M+gW+6, g2W = gW;
         drawBox(g, g2X, gY, g2W, gH);
         g.setFont(new Font("SansSerif", Font.PLAIN, 9));
         g.setColor(new Color(130, 130, 150));
-        g.drawString("Historico coches", g2X+6, gY+11);
-        if (hIdx > 1) {
-            int n = Math.min(hIdx, HIST); double mx = 1;
-            for (int i = 0; i < n; i++) mx = Math.max(mx, histCars[(hIdx-n+i) % HIST]);
-            g.setColor(new Color(80, 180, 255, 160));
-            int px = -1, py = -1;
-            for (int i = 0; i < n; i++) {
-                int xx = g2X+4+(int)((g2W-8.0)*i/n);
-                int yy = gY+gH-4-(int)(histCars[(hIdx-n+i)%HIST]/mx*(gH-18));
-                if (px >= 0) g.drawLine(px, py, xx, yy);
-                px = xx; py = yy;
+        g.drawString("Historico coches (" + ZOOM_LBL[zoom] + ", rueda = zoom)", g2X+6, gY+11);
+        histRect.setBounds(g2X, gY, g2W, gH);
+        drawHistory(g, g2X+4, gY+14, g2W-8, gH-18);
+    }
+
+    // Esperas por coche: simuladas (ticks frenado * tickMs) frente a medidas en los hilos de CarThreads
+    void drawCarThreads(Graphics2D g, CarThreads ct, int x, int y, int w) {
+        drawBox(g, x, y, w, 32);
+        g.setFont(new Font("Consolas", Font.PLAIN, 10));
+        g.setColor(new Color(150, 220, 255));
+        g.drawString(String.format("HILOS %s: %d vivos  cola %d  carretera %d  rotonda %d  salidos BCN %d / Gran %d",
+            ct.virtual ? "VIRTUALES" : "PLATAFORMA", ct.alive(), ct.queued.get(), ct.onRoad.get(), ct.inRab.get(),
+            ct.exBcn.sum(), ct.exGran.sum()), x + 8, y + 13);
+        g.setColor(new Color(185, 200, 240));
+        g.drawString(String.format("Espera media sim/real:  rotonda %.0f/%.0f ms   semaforo %.0f/%.0f ms   celdas %.0f/%.0f ms",
+            simRab.meanMs(), ct.wRab.meanMs(), simLight.meanMs(), ct.wLight.meanMs(), simCell.meanMs(), ct.wCell.meanMs()), x + 8, y + 26);
+    }
+
+    // Bloqueo real medido por ContentionProbe (ms por segundo de reloj)
+    void drawContention(Graphics2D g, ContentionProbe.Sample cs, int x, int y, int w) {
+        if (w < 120) return;
+        drawBox(g, x, y, w, 32);
+        g.setFont(new Font("Consolas", Font.PLAIN, 10));
+        g.setColor(cs.blocked() > ContentionProbe.DIAG_MS ? new Color(255, 120, 90) : new Color(150, 220, 255));
+        g.drawString(String.format("JVM bloq. sched %.1f  EDT %.1f ms/s", cs.blockedMs()[0], cs.blockedMs()[1]), x + 6, y + 13);
+        g.setColor(new Color(185, 200, 240));
+        double[] m = cs.monitorMs();
+        g.drawString(String.format("tick %.0f  rabCars %.0f  otros %.0f", m[0], m[1], m[2]), x + 6, y + 26);
+    }
+
+    // Diagrama espacio-tiempo: una columna por tick. Solo se pintan las columnas nuevas; el resto
+    // de la imagen se desplaza con copyArea en vez de redibujar el historico en cada frame
+    void drawSpaceTime(Graphics2D g, int x, int y, int w, int h) {
+        if (w <= 0 || h <= 0) return;
+        long head = occRing.head, n = head - stDrawn;
+        if (stImg == null || stImg.getWidth() != w || stImg.getHeight() != h || n >= w) {
+            stImg = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+            Graphics2D ig = stImg.createGraphics(); ig.setColor(new Color(0x0e1018)); ig.fillRect(0, 0, w, h); ig.dispose();
+            n = Math.min(w, head);
+        } else if (n > 0) {
+            Graphics2D ig = stImg.createGraphics();
+            ig.copyArea((int) n, 0, w - (int) n, h, (int) -n, 0);
+            ig.dispose();
+        }
+        for (long t = head - n; t < head; t++) {
+            int col = w - (int) (head - t);
+            for (int py = 0; py < h; py++) {
+                int p0 = (h - 1 - py) * ROAD_LEN / h, p1 = Math.max(p0 + 1, (h - py) * ROAD_LEN / h), cells = (p1 - p0) * LANES;
+                int occ = occRing.count(occRing.occ, t, p0, p1), brk = occRing.count(occRing.brk, t, p0, p1);
+                int rgb = 0x0e1018;
+                if (occ > 0) rgb = brk * 2 > occ ? heat(0.6f + 0.4f * occ / cells).getRGB() : heat(0.5f * occ / cells).getRGB();
+                stImg.setRGB(col, py, rgb);
             }
         }
+        stDrawn = head;
+        g.drawImage(stImg, x, y, null);
+    }
+
+    // Dibuja la media (linea) y el rango min-max (banda) del nivel que encaja con el zoom: O(pixeles)
+    void drawHistory(Graphics2D g, int x, int y, int w, int h) {
+        long span = ZOOM_MS[zoom]; int k = series.tierFor(span, w);
+        long res = Series.RES[k], last = series.cur[k], nb = Math.max(1, span / res), first = Math.max(last - series.filled[k] + 1, last - nb + 1);
+        if (last < 0 || last - first < 1) return;
+        double mx = 1;
+        for (long bn = first; bn <= last; bn++) { int sl = (int) (bn % Series.CAP); if (series.cnt[k][sl] > 0) mx = Math.max(mx, series.max[k][0][sl]); }
+        int px = -1, py = -1;
+        for (long bn = first; bn <= last; bn++) {
+            int sl = (int) (bn % Series.CAP), n = series.cnt[k][sl];
+            if (n == 0) { px = -1; continue; }
+            int xx = x + (int) (w * (double) (bn - (last - nb + 1)) / nb);
+            int yMin = y + h - (int) (series.min[k][0][sl] / mx * h), yMax = y + h - (int) (series.max[k][0][sl] / mx * h);
+            int yy = y + h - (int) (series.sum[k][0][sl] / n / mx * h);
+            if (yMin != yMax) { g.setColor(new Color(80, 180, 255, 50)); g.drawLine(xx, yMax, xx, yMin); }
+            g.setColor(new Color(80, 180, 255, 160));
+            if (px >= 0) g.drawLine(px, py, xx, yy);
+            px = xx; py = yy;
+        }
     }
 
     void fillZone(Graphics2D g, int rx, int ry, double cw, int rh, int pos, int len, Color c) {
@@ -782,382 +3294,578 @@ public class VicBarcelonaTrafficSim extends JPanel {
 
     // ── main ──────────────────────────────────────────────────────────────
     public static void main(String[] args) {
-        try { UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName()); } catch (Exception ignored) {}
-        SwingUtilities.invokeLater(() -> {
+        String zoneOf = System.getProperty("sim.zoneOf");
+        if (zoneOf != null) {
+            try { Zones.serve(zoneOf); } catch (IOException e) { e.printStackTrace(); System.exit(1); }
+            System.exit(0);
+        }
+        Integer fleet = Integer.getInteger("sim.fleet");
+        if (fleet != null) {
+            try { runFleet(fleet); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+            System.exit(0);
+        }
+        String script = System.getProperty("sim.script");
+        if (script != null) System.exit(runScript(script));
+        String attach = System.getProperty("sim.attach");
+        if (attach != null && GraphicsEnvironment.isHeadless()) {
+            try { tailLive(Path.of(attach)); } catch (IOException | InterruptedException e) { e.printStackTrace(); System.exit(1); }
+            return;
+        }
+        Gui.open(attach);
+    }
+
+    // ── Interfaz Swing ────────────────────────────────────────────────────
+    // Todo lo que es Swing vive aqui y no en la clase principal: asi el modo por lotes (-Dsim.script)
+    // arranca sin que el verificador cargue ninguna clase de javax.swing
+    static final class Gui {
+        static void open(String attach) {
+            try { UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName()); } catch (Exception ignored) {}
+            if (attach != null) {
+                SwingUtilities.invokeLater(() -> {
+                    try { openAttach(Path.of(attach)); } catch (IOException e) { e.printStackTrace(); System.exit(1); }
+                });
+                return;
+            }
+            String replay = System.getProperty("sim.replay");
+            if (replay != null) {
+                SwingUtilities.invokeLater(() -> {
+                    try { openReplay(Path.of(replay)); } catch (IOException e) { e.printStackTrace(); System.exit(1); }
+                });
+                return;
+            }
+            SwingUtilities.invokeLater(() -> {
+                VicBarcelonaTrafficSim sim = new VicBarcelonaTrafficSim();
+                String zs = System.getProperty("sim.zones");
+                if (zs != null) try { sim.zones = new Zones(sim, zs); } catch (IOException | IllegalArgumentException e) { e.printStackTrace(); System.exit(1); }
+                JFrame frame = new JFrame("Simulador Trafico C-17: Vic - Barcelona");
+                frame.setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
+
+                // Panel izquierdo: simulacion arriba + panel educativo abajo
+                JPanel leftPanel = new JPanel(new BorderLayout());
+                leftPanel.setBackground(new Color(18, 20, 30));
+
+                // Panel educativo (JTextPane con HTML) en la parte inferior
+                JTextPane edu = new JTextPane();
+                edu.setContentType("text/html");
+                edu.setEditable(false);
+                edu.setBackground(new Color(14, 16, 24));
+                edu.setBorder(BorderFactory.createEmptyBorder(0, 0, 0, 0));
+                edu.setText("<html><body style='font-family:SansSerif; font-size:11px; color:#555e80; margin:12px;'>"
+                    + "<span style='color:#3a4060; font-size:13px; font-weight:bold;'>Panel educativo</span><br><br>"
+                    + "Mueve cualquier slider del panel derecho y aqui aparecera:<br>"
+                    + "&nbsp;&nbsp;&#128218; <b style='color:#64b4ff;'>Que concepto de hilos representa</b><br>"
+                    + "&nbsp;&nbsp;&#9650; <b style='color:#50dc90;'>Que pasa si subes el valor</b><br>"
+                    + "&nbsp;&nbsp;&#9660; <b style='color:#ff7850;'>Que pasa si lo bajas</b><br>"
+                    + "&nbsp;&nbsp;&#128196; <b style='color:#90cce8;'>Codigo Java equivalente</b>"
+                    + "</body></html>");
+                sim.eduPane = edu;
+
+                JScrollPane eduScroll = new JScrollPane(edu);
+                eduScroll.setBorder(BorderFactory.createMatteBorder(2, 0, 0, 0, new Color(25, 30, 55)));
+                eduScroll.setHorizontalScrollBarPolicy(JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
+                eduScroll.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED);
+                eduScroll.setPreferredSize(new Dimension(0, 220));
+                eduScroll.getViewport().setBackground(new Color(14, 16, 24));
+
+                leftPanel.add(sim.view(), BorderLayout.NORTH);
+                leftPanel.add(eduScroll, BorderLayout.CENTER);
+
+                // Panel derecho: controles
+                JPanel ctrl = buildCtrl(sim);
+                ctrl.setPreferredSize(new Dimension(400, 0));
+
+                JPanel content = new JPanel(new BorderLayout());
+                content.add(leftPanel, BorderLayout.CENTER);
+                content.add(ctrl, BorderLayout.EAST);
+
+                frame.setContentPane(content);
+                frame.setSize(1600, 900);
+                frame.setLocationRelativeTo(null);
+                frame.setExtendedState(JFrame.MAXIMIZED_BOTH);
+                frame.setVisible(true);
+                String ckpt = System.getProperty("sim.restore");
+                if (ckpt != null) try { sim.loadCheckpoint(Path.of(ckpt)); syncSliders(sim); } catch (IOException e) { e.printStackTrace(); }
+                sim.start();
+                Integer mPort = Integer.getInteger("sim.metrics.port");
+                if (mPort != null) try { sim.serveMetrics(mPort); } catch (IOException e) { e.printStackTrace(); }
+                sim.outputs();
+                Integer nCars = Integer.getInteger("sim.threads"); // -Dsim.threads=100000: modo hilos reales con N coches de golpe
+                if (nCars != null) { sim.carThreads(true); sim.carThreads.burst(nCars); sim.cbThreads.setSelected(true); }
+                if (Boolean.getBoolean("sim.lab")) openLab(sim);
+                frame.addWindowListener(new WindowAdapter() {
+                    public void windowClosing(WindowEvent e) {
+                        sim.running = false; sim.sched.shutdownNow(); sim.carThreads(false); sim.lab(false);
+                        if (sim.zones != null) sim.zones.close();
+                        sim.closeOutputs();
+                    }
+                });
+            });
+        }
+        static void openReplay(Path file) throws IOException {
+            Replay rp = new Replay(file);
             VicBarcelonaTrafficSim sim = new VicBarcelonaTrafficSim();
-            JFrame frame = new JFrame("Simulador Trafico C-17: Vic - Barcelona");
+            sim.running = false;
+            JFrame frame = new JFrame("Repeticion: " + file.getFileName());
             frame.setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
-
-            // Panel izquierdo: simulacion arriba + panel educativo abajo
-            JPanel leftPanel = new JPanel(new BorderLayout());
-            leftPanel.setBackground(new Color(18, 20, 30));
-
-            // Panel educativo (JTextPane con HTML) en la parte inferior
-            JTextPane edu = new JTextPane();
-            edu.setContentType("text/html");
-            edu.setEditable(false);
-            edu.setBackground(new Color(14, 16, 24));
-            edu.setBorder(BorderFactory.createEmptyBorder(0, 0, 0, 0));
-            edu.setText("<html><body style='font-family:SansSerif; font-size:11px; color:#555e80; margin:12px;'>"
-                + "<span style='color:#3a4060; font-size:13px; font-weight:bold;'>Panel educativo</span><br><br>"
-                + "Mueve cualquier slider del panel derecho y aqui aparecera:<br>"
-                + "&nbsp;&nbsp;&#128218; <b style='color:#64b4ff;'>Que concepto de hilos representa</b><br>"
-                + "&nbsp;&nbsp;&#9650; <b style='color:#50dc90;'>Que pasa si subes el valor</b><br>"
-                + "&nbsp;&nbsp;&#9660; <b style='color:#ff7850;'>Que pasa si lo bajas</b><br>"
-                + "&nbsp;&nbsp;&#128196; <b style='color:#90cce8;'>Codigo Java equivalente</b>"
-                + "</body></html>");
-            sim.eduPane = edu;
-
-            JScrollPane eduScroll = new JScrollPane(edu);
-            eduScroll.setBorder(BorderFactory.createMatteBorder(2, 0, 0, 0, new Color(25, 30, 55)));
-            eduScroll.setHorizontalScrollBarPolicy(JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
-            eduScroll.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED);
-            eduScroll.setPreferredSize(new Dimension(0, 220));
-            eduScroll.getViewport().setBackground(new Color(14, 16, 24));
-
-            leftPanel.add(sim, BorderLayout.NORTH);
-            leftPanel.add(eduScroll, BorderLayout.CENTER);
-
-            // Panel derecho: controles
-            JPanel ctrl = buildCtrl(sim);
-            ctrl.setPreferredSize(new Dimension(400, 0));
-
+            JSlider timeline = new JSlider(0, Math.max(1, (int) rp.durationMs()), 0);
+            timeline.setBackground(new Color(18, 20, 30));
+            JLabel tl = new JLabel(); tl.setForeground(new Color(185, 200, 240)); tl.setFont(new Font("Consolas", Font.BOLD, 12));
+            JComboBox<String> speed = new JComboBox<>(new String[]{"-8x", "-2x", "-1x", "0.25x", "1x", "2x", "8x", "32x"});
+            speed.setSelectedItem("1x");
+            JButton bPlay = actionBtn("Reproducir", new Color(50,160,80));
+            final double[] pos = {0}; final boolean[] playing = {false};
+            Runnable apply = () -> {
+                int f = rp.frameAt((long) pos[0]); rp.seek(f, sim);
+                tl.setText(String.format("%02d:%02d  frame %d/%d", (long) pos[0] / 60000, (long) pos[0] / 1000 % 60, f + 1, rp.frames));
+                sim.view.repaint();
+            };
+            timeline.addChangeListener(e -> { if (!playing[0] || timeline.getValueIsAdjusting()) { pos[0] = timeline.getValue(); apply.run(); } });
+            javax.swing.Timer player = new javax.swing.Timer(40, e -> {
+                String sp = (String) speed.getSelectedItem();
+                pos[0] = Math.max(0, Math.min(rp.durationMs(), pos[0] + 40 * Double.parseDouble(sp.substring(0, sp.length() - 1))));
+                timeline.setValue((int) pos[0]); apply.run();
+            });
+            bPlay.addActionListener(e -> {
+                playing[0] = !playing[0];
+                if (playing[0]) player.start(); else player.stop();
+                bPlay.setText(playing[0] ? "Pausa" : "Reproducir");
+            });
+            JPanel bar = new JPanel(new BorderLayout(10, 0));
+            bar.setBackground(new Color(18, 20, 30));
+            bar.setBorder(BorderFactory.createEmptyBorder(8, 10, 8, 10));
+            JPanel btns = new JPanel(new FlowLayout(FlowLayout.LEFT, 6, 0)); btns.setOpaque(false);
+            btns.add(bPlay); btns.add(speed);
+            bar.add(btns, BorderLayout.WEST); bar.add(timeline, BorderLayout.CENTER); bar.add(tl, BorderLayout.EAST);
             JPanel content = new JPanel(new BorderLayout());
-            content.add(leftPanel, BorderLayout.CENTER);
-            content.add(ctrl, BorderLayout.EAST);
+            content.add(sim.view(), BorderLayout.CENTER); content.add(bar, BorderLayout.SOUTH);
+            frame.setContentPane(content);
+            frame.pack(); frame.setLocationRelativeTo(null); frame.setVisible(true);
+            apply.run();
+        }
 
+        // ── Visor en vivo ─────────────────────────────────────────────────────
+        // Cada frame de pantalla mira si hay version nueva y la vuelca con show(), como el visor de grabaciones
+        static void openAttach(Path file) throws IOException {
+            LiveView.Reader rd = new LiveView.Reader(file);
+            VicBarcelonaTrafficSim sim = new VicBarcelonaTrafficSim();
+            sim.running = false;
+            JFrame frame = new JFrame("En vivo: " + file.getFileName());
+            frame.setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
+            JLabel tl = new JLabel(" "); tl.setForeground(new Color(185, 200, 240)); tl.setFont(new Font("Consolas", Font.BOLD, 12));
+            tl.setBorder(BorderFactory.createEmptyBorder(6, 10, 6, 10));
+            long[] lastNs = {System.nanoTime()};
+            new javax.swing.Timer(FRAME_MS, e -> {
+                long now = System.nanoTime();
+                if (rd.poll()) { sim.show(rd.cells, rd.scal, rd.rab, rd.nRab); sim.view.repaint(); lastNs[0] = now; }
+                tl.setText(String.format("tick %d  version %d  reintentos %d%s", rd.tick, rd.seq, rd.retries,
+                    now - lastNs[0] > 2_000_000_000L ? "  (sin cambios: simulacion parada?)" : ""));
+            }).start();
+            JPanel content = new JPanel(new BorderLayout());
+            content.setBackground(new Color(18, 20, 30));
+            content.add(sim.view(), BorderLayout.CENTER); content.add(tl, BorderLayout.SOUTH);
             frame.setContentPane(content);
-            frame.setSize(1600, 900);
-            frame.setLocationRelativeTo(null);
-            frame.setExtendedState(JFrame.MAXIMIZED_BOTH);
-            frame.setVisible(true);
-            sim.start();
+            frame.pack(); frame.setLocationRelativeTo(null); frame.setVisible(true);
+        }
+
+        // Ventana del laboratorio: cifras medidas en la JVM junto a las de la simulacion (escaladas a tareas/s)
+        static void openLab(VicBarcelonaTrafficSim sim) {
+            if (sim.lab != null) return;
+            sim.lab(true);
+            JFrame frame = new JFrame("Laboratorio executor (carga real, x" + WorkLab.LAB_SCALE + ")");
+            frame.setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
+            JPanel grid = new JPanel(new GridLayout(7, 1, 0, 4));
+            grid.setBackground(new Color(18, 20, 30));
+            grid.setBorder(BorderFactory.createEmptyBorder(12, 14, 12, 14));
+            JLabel[] rows = new JLabel[7];
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = new JLabel(" "); rows[i].setFont(new Font("Consolas", Font.PLAIN, 12));
+                rows[i].setForeground(i == 0 ? new Color(100, 190, 255) : new Color(185, 200, 240)); grid.add(rows[i]);
+            }
+            javax.swing.Timer pump = new javax.swing.Timer(WorkLab.STAT_MS / 2, e -> {
+                WorkLab w = sim.lab; if (w == null) return;
+                WorkLab.Stats st = w.stats; Params p = sim.cfg.get(); Snapshot s = sim.snap;
+                double simOut = s == null || s.simSec == 0 ? 0 : (s.exGran + s.exBcn) * (double) WorkLab.LAB_SCALE / s.simSec;
+                rows[0].setText(String.format("Entrada: Vic %d + Centelles %d /min  ->  %.0f tareas/s", p.entryVic(), p.entryCen(),
+                    (p.entryVic() + p.entryCen()) * WorkLab.LAB_SCALE / 60.0));
+                rows[1].setText(String.format("Throughput real: %.0f tareas/s    simulacion: %.0f/s (media)", st.perSec(), simOut));
+                rows[2].setText(String.format("Pool Barcelona: core %d  max %d  hilos %d  activos %d", st.core(), st.max(), st.pool(), st.active()));
+                rows[3].setText(String.format("Cola (LinkedBlockingQueue %d): %d  max %d  rechazadas %d", WorkLab.QUEUE, st.queue(), st.maxQueue(), st.rejected()));
+                rows[4].setText(String.format("Rotonda: Semaphore(%d)  %d us de CPU  espera media %.2f ms", p.rabCap(), 60_000 / Math.max(1, p.rabExit()), st.csWaitMs()));
+                rows[5].setText(String.format("Latencia p50 %.2f  p95 %.2f  p99 %.2f ms", st.p50(), st.p95(), st.p99()));
+                rows[6].setText(String.format("Simulacion: cola Vic %d  Cen %d  rotonda %d/%d", sim.qvLen, sim.qcLen, s == null ? 0 : s.rab, p.rabCap()));
+            });
             frame.addWindowListener(new WindowAdapter() {
-                public void windowClosing(WindowEvent e) { sim.running = false; sim.sched.shutdownNow(); }
+                public void windowClosed(WindowEvent e) { pump.stop(); sim.lab(false); }
             });
-        });
-    }
+            frame.setContentPane(grid);
+            frame.pack(); frame.setSize(Math.max(frame.getWidth(), 560), frame.getHeight());
+            frame.setLocationRelativeTo(sim.view); frame.setVisible(true);
+            pump.start();
+        }
 
-    // ── Panel de control derecho ──────────────────────────────────────────
-    static class FillPanel extends JPanel implements javax.swing.Scrollable {
-        FillPanel(LayoutManager lm) { super(lm); }
-        public Dimension getPreferredScrollableViewportSize() { return getPreferredSize(); }
-        public int getScrollableUnitIncrement(Rectangle vr, int o, int d) { return 16; }
-        public int getScrollableBlockIncrement(Rectangle vr, int o, int d) { return 60; }
-        public boolean getScrollableTracksViewportWidth() { return true; }
-        public boolean getScrollableTracksViewportHeight() { return false; }
-    }
-
-    static JPanel buildCtrl(VicBarcelonaTrafficSim sim) {
-        JPanel mainP = new JPanel(new BorderLayout());
-        mainP.setBackground(new Color(22, 24, 34));
-
-        final FillPanel scrollContent = new FillPanel(new GridBagLayout());
-        scrollContent.setBackground(new Color(22, 24, 34));
-        scrollContent.setBorder(BorderFactory.createEmptyBorder(0, 0, 20, 0));
-        final int[] row = {0};
-
-        // Cabecera
-        JPanel header = new JPanel(new BorderLayout());
-        header.setBackground(new Color(15, 17, 26));
-        header.setBorder(BorderFactory.createEmptyBorder(14, 16, 14, 16));
-        JLabel hTitle = new JLabel("Panel de Control");
-        hTitle.setForeground(new Color(130, 200, 255));
-        hTitle.setFont(new Font("SansSerif", Font.BOLD, 15));
-        JLabel hSub = new JLabel("Hilos y Concurrencia — C17 Vic/Barcelona");
-        hSub.setForeground(new Color(80, 90, 120));
-        hSub.setFont(new Font("SansSerif", Font.ITALIC, 11));
-        JPanel hTexts = new JPanel(new BorderLayout());
-        hTexts.setOpaque(false);
-        hTexts.add(hTitle, BorderLayout.NORTH);
-        hTexts.add(hSub, BorderLayout.SOUTH);
-        header.add(hTexts, BorderLayout.WEST);
-        addRow(scrollContent, row, header);
-        addRow(scrollContent, row, accentLine(new Color(40, 60, 100)));
-
-        // Escenarios
-        addRow(scrollContent, row, sectionHeader("RETOS INTERACTIVOS", "Provoca un error de hilos y arreglalo", new Color(80, 200, 130)));
-
-        addRow(scrollContent, row, presetCard("1. Reto: El Cuello de Botella",
-            "Problema: Capacidad de rotonda a 1 (Mutex). Solo pasa 1 coche. Solución: Sube 'Capacidad' a 15 para permitir paralelismo.",
-            new Color(55,35,10), new Color(220,140,30), () -> {
-                sim.entryVic=60; sim.entryCen=40; sim.exitGran=30; sim.exitBcn=60;
-                sim.rabCap=1; sim.rabExit=20; sim.pctExit=40; sim.lightsOn=false; sim.rabOn=true;
-                syncSliders(sim);
-            }));
-
-        addRow(scrollContent, row, presetCard("2. Reto: Servidor Saturado",
-            "Problema: El Pool principal (Barcelona) procesa muy lento y la cola crece. Solución: Sube la salida de 'Barcelona' a 80.",
-            new Color(60,25,20), new Color(220,70,50), () -> {
-                sim.entryVic=80; sim.entryCen=40; sim.exitBcn=10; sim.exitGran=20;
-                sim.rabCap=15; sim.rabExit=20; sim.pctExit=20; sim.lightsOn=false; sim.rabOn=true;
-                syncSliders(sim);
-            }));
-
-        addRow(scrollContent, row, presetCard("3. Reto: Operacion lenta en Lock",
-            "Problema: Entrar a la rotonda es rapido, pero salir tarda mucho (I/O lento). Solución: Sube 'Vel. proceso' a 40.",
-            new Color(40,15,45), new Color(190,80,220), () -> {
-                sim.entryVic=50; sim.entryCen=30; sim.exitBcn=50; sim.exitGran=30;
-                sim.rabCap=20; sim.rabExit=2; sim.pctExit=60; sim.lightsOn=false; sim.rabOn=true;
-                syncSliders(sim);
-            }));
-
-        addRow(scrollContent, row, presetCard("4. Reto: Exceso de recurso compartido",
-            "Problema: Casi todos los hilos intentan usar la rotonda a la vez. Solución: Baja '% desviados' a 20 para evitar la contención.",
-            new Color(15,40,55), new Color(40,150,220), () -> {
-                sim.entryVic=50; sim.entryCen=30; sim.exitBcn=50; sim.exitGran=30;
-                sim.rabCap=5; sim.rabExit=15; sim.pctExit=95; sim.lightsOn=false; sim.rabOn=true;
-                syncSliders(sim);
-            }));
-
-        // Tutor en vivo (solo diagnostico de atasco, breve)
-        addRow(scrollContent, row, sectionHeader("Explicacion en vivo", "Estado del sistema en tiempo real", new Color(120, 170, 255)));
-        JPanel tutorPanel = new JPanel(new BorderLayout(10, 0));
-        tutorPanel.setBackground(new Color(28, 32, 48));
-        tutorPanel.setBorder(BorderFactory.createCompoundBorder(
-            BorderFactory.createMatteBorder(0,3,0,0,new Color(80,130,220)),
-            BorderFactory.createEmptyBorder(10,12,10,12)));
-        sim.lAdv = new JLabel();
-        sim.lAdv.setForeground(new Color(100, 200, 255));
-        sim.lAdv.setFont(new Font("SansSerif", Font.PLAIN, 11));
-        sim.diagnostic();
-        JLabel tutorIcon = new JLabel("?");
-        tutorIcon.setForeground(new Color(80, 130, 220));
-        tutorIcon.setFont(new Font("SansSerif", Font.BOLD, 22));
-        tutorPanel.add(tutorIcon, BorderLayout.WEST);
-        tutorPanel.add(sim.lAdv, BorderLayout.CENTER);
-        JPanel tutorWrap = new JPanel(new BorderLayout());
-        tutorWrap.setOpaque(false);
-        tutorWrap.setBorder(BorderFactory.createEmptyBorder(0,10,0,10));
-        tutorWrap.add(tutorPanel, BorderLayout.CENTER);
-        addRow(scrollContent, row, tutorWrap);
-        addRow(scrollContent, row, vSpacer(8));
-
-        // PRODUCTORES
-        addRow(scrollContent, row, sectionHeader("PRODUCTORES — Entradas", "Generan nuevos threads (coches) al sistema", new Color(70,200,120)));
-        addRow(scrollContent, row, conceptChip("Coche = Thread  |  Cola = BlockingQueue  |  Entrada saturada = productor bloqueado"));
-        JPanel slidersIn = new JPanel(new GridBagLayout());
-        slidersIn.setOpaque(false);
-        slidersIn.setBorder(BorderFactory.createEmptyBorder(4,10,4,10));
-        sim.sVic = sliderRow(slidersIn, 0, "Vic", "threads/min desde Vic", 0, 150, sim.entryVic, new Color(70,200,120), v -> { sim.entryVic=v; sim.explainAction("vic",v); });
-        sim.sCen = sliderRow(slidersIn, 1, "Centelles", "threads/min desde Centelles", 0, 150, sim.entryCen, new Color(70,160,230), v -> { sim.entryCen=v; sim.explainAction("cen",v); });
-        addRow(scrollContent, row, slidersIn);
-        addRow(scrollContent, row, vSpacer(8));
-
-        // CONSUMIDORES
-        addRow(scrollContent, row, sectionHeader("CONSUMIDORES — Salidas", "Velocidad a la que los threads abandonan el sistema", new Color(220,80,75)));
-        addRow(scrollContent, row, conceptChip("Thread pool = salida  |  Saturacion = consumidor mas lento que el productor"));
-        JPanel slidersOut = new JPanel(new GridBagLayout());
-        slidersOut.setOpaque(false);
-        slidersOut.setBorder(BorderFactory.createEmptyBorder(4,10,4,10));
-        sim.sBcn  = sliderRow(slidersOut, 0, "Barcelona", "capacidad del consumidor principal", 0, 80, sim.exitBcn, new Color(220,80,75), v -> { sim.exitBcn=v; sim.explainAction("bcn",v); });
-        sim.sGran = sliderRow(slidersOut, 1, "Granollers", "velocidad de la salida secundaria", 0, 80, sim.exitGran, new Color(230,160,50), v -> { sim.exitGran=v; sim.explainAction("gran",v); });
-        addRow(scrollContent, row, slidersOut);
-        addRow(scrollContent, row, vSpacer(8));
-
-        // SECCION CRITICA
-        addRow(scrollContent, row, sectionHeader("SECCION CRITICA — Rotonda", "Simula un bloque synchronized o un Mutex", new Color(190,140,255)));
-        addRow(scrollContent, row, conceptChip("Rotonda = synchronized  |  Capacidad = Semaphore(N)  |  Cola = threads bloqueados en el lock"));
-        JPanel slidersRab = new JPanel(new GridBagLayout());
-        slidersRab.setOpaque(false);
-        slidersRab.setBorder(BorderFactory.createEmptyBorder(4,10,4,10));
-        sim.sRabCap  = sliderRow(slidersRab, 0, "Capacidad", "max threads en la seccion critica", 1, 40, sim.rabCap, new Color(190,140,255), v -> { sim.rabCap=v; sim.explainAction("rabcap",v); });
-        sim.sRabExit = sliderRow(slidersRab, 1, "Vel. proceso", "velocidad de proceso dentro del lock", 1, 50, sim.rabExit, new Color(160,120,230), v -> { sim.rabExit=v; sim.explainAction("rabexit",v); });
-        sim.sPct     = sliderRow(slidersRab, 2, "% desviados", "% de threads que usan la sec. critica", 0, 100, sim.pctExit, new Color(140,100,210), v -> { sim.pctExit=v; sim.explainAction("pct",v); });
-        addRow(scrollContent, row, slidersRab);
-        JPanel cbP1 = new JPanel(new BorderLayout());
-        cbP1.setOpaque(false);
-        cbP1.setBorder(BorderFactory.createEmptyBorder(2,14,4,10));
-        JCheckBox cbRab = new JCheckBox("Activar rotonda (seccion critica)", sim.rabOn);
-        styleCb(cbRab);
-        cbRab.addActionListener(e -> { sim.rabOn = cbRab.isSelected(); sim.explainAction("rab", sim.rabOn ? 1 : 0); });
-        cbP1.add(cbRab, BorderLayout.WEST);
-        addRow(scrollContent, row, cbP1);
-        addRow(scrollContent, row, vSpacer(8));
-
-        // LOCKS Y FISICA
-        addRow(scrollContent, row, sectionHeader("LOCKS Y FISICA", "Semaforos explicitos y parametros de simulacion", new Color(255,190,70)));
-        addRow(scrollContent, row, conceptChip("Semaforo = ReentrantLock  |  Distancia = tiempo CPU  |  Tick = frecuencia del scheduler"));
-        JPanel slidersPhys = new JPanel(new GridBagLayout());
-        slidersPhys.setOpaque(false);
-        slidersPhys.setBorder(BorderFactory.createEmptyBorder(4,10,4,10));
-        sim.sGap  = sliderRow(slidersPhys, 0, "Distancia min", "separacion entre threads (tiempo CPU)", 1, 8, sim.gap, new Color(255,190,70), v -> { sim.gap=v; sim.explainAction("gap",v); });
-        sim.sTick = sliderRow(slidersPhys, 1, "Velocidad sim", "ms por tick (menor = mas rapido)", 20, 300, sim.tickMs, new Color(200,160,60), v -> { sim.tickMs=v; sim.explainAction("tick",v); });
-        addRow(scrollContent, row, slidersPhys);
-        JPanel cbP2 = new JPanel(new BorderLayout());
-        cbP2.setOpaque(false);
-        cbP2.setBorder(BorderFactory.createEmptyBorder(2,14,4,10));
-        JCheckBox cbLt = new JCheckBox("Activar semaforos (ReentrantLock)", sim.lightsOn);
-        styleCb(cbLt);
-        cbLt.addActionListener(e -> { sim.lightsOn = cbLt.isSelected(); sim.explainAction("lights", sim.lightsOn ? 1 : 0); });
-        cbP2.add(cbLt, BorderLayout.WEST);
-        addRow(scrollContent, row, cbP2);
-        addRow(scrollContent, row, vSpacer(8));
-
-        // Botones
-        addRow(scrollContent, row, accentLine(new Color(40,50,80)));
-        JPanel ctrlBar = new JPanel(new FlowLayout(FlowLayout.LEFT, 10, 10));
-        ctrlBar.setBackground(new Color(18, 20, 30));
-        JButton bPause = actionBtn("Pausar", new Color(180,150,40));
-        bPause.addActionListener(e -> {
-            sim.running = !sim.running;
-            bPause.setText(sim.running ? "Pausar" : "Seguir");
-            bPause.setBackground(sim.running ? new Color(180,150,40) : new Color(50,160,80));
-        });
-        JButton bReset = actionBtn("Reiniciar", new Color(160,60,50));
-        bReset.addActionListener(e -> {
-            for (int l = 0; l < LANES; l++) Arrays.fill(sim.road[l], null);
-            sim.rabCars.clear(); sim.qVic.clear(); sim.qCen.clear();
-            sim.exGran = sim.exBcn = sim.enVic = sim.enCen = 0;
-            sim.simStart = System.currentTimeMillis(); sim.simSec = 0;
-            sim.repaint();
-        });
-        ctrlBar.add(bPause);
-        ctrlBar.add(bReset);
-        addRow(scrollContent, row, ctrlBar);
-
-        // Glue final
-        GridBagConstraints gc = new GridBagConstraints();
-        gc.gridx = 0; gc.gridy = row[0]++; gc.weighty = 1.0; gc.fill = GridBagConstraints.BOTH;
-        scrollContent.add(Box.createGlue(), gc);
-
-        JScrollPane scroll = new JScrollPane(scrollContent);
-        scroll.setHorizontalScrollBarPolicy(JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
-        scroll.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED);
-        scroll.setBorder(BorderFactory.createEmptyBorder());
-        scroll.getVerticalScrollBar().setUnitIncrement(14);
-        scroll.getViewport().setBackground(new Color(22, 24, 34));
-        scroll.getVerticalScrollBar().setUI(new javax.swing.plaf.basic.BasicScrollBarUI() {
-            @Override protected void configureScrollBarColors() { thumbColor = new Color(55,65,100); trackColor = new Color(22,24,34); }
-            @Override protected JButton createDecreaseButton(int o) { JButton b = new JButton(); b.setPreferredSize(new Dimension(0,0)); return b; }
-            @Override protected JButton createIncreaseButton(int o) { JButton b = new JButton(); b.setPreferredSize(new Dimension(0,0)); return b; }
-        });
-        mainP.add(scroll, BorderLayout.CENTER);
-        return mainP;
-    }
-
-    // ── Helpers de UI ─────────────────────────────────────────────────────
-    static void addRow(JPanel p, int[] row, JComponent c) {
-        GridBagConstraints gc = new GridBagConstraints();
-        gc.gridx = 0; gc.gridy = row[0]++; gc.weightx = 1.0;
-        gc.fill = GridBagConstraints.HORIZONTAL; gc.anchor = GridBagConstraints.NORTHWEST;
-        p.add(c, gc);
-    }
-
-    static JPanel vSpacer(int h) {
-        JPanel p = new JPanel(); p.setOpaque(false);
-        p.setPreferredSize(new Dimension(0,h)); p.setMinimumSize(new Dimension(0,h));
-        return p;
-    }
-
-    static JPanel accentLine(Color c) {
-        JPanel l = new JPanel(); l.setBackground(c);
-        l.setPreferredSize(new Dimension(0,1)); l.setMinimumSize(new Dimension(0,1));
-        return l;
-    }
-
-    static JPanel sectionHeader(String title, String subtitle, Color accent) {
-        JPanel p = new JPanel(new BorderLayout(8, 0));
-        p.setBackground(new Color(26, 28, 40));
-        p.setBorder(BorderFactory.createCompoundBorder(
-            BorderFactory.createMatteBorder(2,0,0,0,new Color(35,40,65)),
-            BorderFactory.createEmptyBorder(9,10,7,10)));
-        JLabel t = new JLabel(title);
-        t.setForeground(accent); t.setFont(new Font("SansSerif", Font.BOLD, 12));
-        JLabel s = new JLabel("<html><i><font color='#555870'>" + subtitle + "</font></i></html>");
-        s.setFont(new Font("SansSerif", Font.ITALIC, 9));
-        JPanel texts = new JPanel(new BorderLayout()); texts.setOpaque(false);
-        texts.add(t, BorderLayout.NORTH); texts.add(s, BorderLayout.CENTER);
-        JPanel bar = new JPanel(); bar.setBackground(accent); bar.setPreferredSize(new Dimension(4,0));
-        p.add(bar, BorderLayout.WEST); p.add(texts, BorderLayout.CENTER);
-        return p;
-    }
-
-    static JPanel conceptChip(String text) {
-        JPanel wrap = new JPanel(new BorderLayout()); wrap.setOpaque(false);
-        wrap.setBorder(BorderFactory.createEmptyBorder(0,10,0,10));
-        JPanel p = new JPanel(new BorderLayout());
-        p.setBackground(new Color(32, 36, 52));
-        p.setBorder(BorderFactory.createCompoundBorder(
-            BorderFactory.createMatteBorder(1,1,1,1,new Color(45,55,90)),
-            BorderFactory.createEmptyBorder(5,10,5,10)));
-        JLabel l = new JLabel("<html><div style='color:#606ca8;font-size:9px'>" + text + "</div></html>");
-        l.setFont(new Font("SansSerif", Font.PLAIN, 9));
-        p.add(l, BorderLayout.CENTER); wrap.add(p, BorderLayout.CENTER);
-        return wrap;
-    }
-
-    static JPanel presetCard(String title, String desc, Color bg, Color accent, Runnable action) {
-        JPanel outer = new JPanel(new BorderLayout()); outer.setOpaque(false);
-        outer.setBorder(BorderFactory.createEmptyBorder(2,10,2,10));
-        JPanel card = new JPanel(new BorderLayout(8,0)); card.setBackground(bg);
-        card.setBorder(BorderFactory.createCompoundBorder(
-            BorderFactory.createMatteBorder(0,4,0,0,accent),
-            BorderFactory.createEmptyBorder(7,10,7,8)));
-        card.setCursor(Cursor.getPredefinedCursor(Cursor.HAND_CURSOR));
-        JPanel texts = new JPanel(new BorderLayout()); texts.setOpaque(false);
-        JLabel tl = new JLabel("<html><b>" + title + "</b></html>");
-        tl.setForeground(Color.WHITE); tl.setFont(new Font("SansSerif",Font.BOLD,11));
-        JLabel dl = new JLabel("<html><div style='color:#8898bb;font-size:9px'>" + desc + "</div></html>");
-        dl.setFont(new Font("SansSerif",Font.PLAIN,9));
-        texts.add(tl, BorderLayout.NORTH); texts.add(dl, BorderLayout.CENTER);
-        JButton btn = new JButton(">");
-        btn.setBackground(accent); btn.setForeground(Color.WHITE);
-        btn.setFont(new Font("SansSerif",Font.BOLD,13));
-        btn.setFocusPainted(false); btn.setBorderPainted(false); btn.setOpaque(true);
-        btn.setPreferredSize(new Dimension(30,30));
-        btn.setCursor(Cursor.getPredefinedCursor(Cursor.HAND_CURSOR));
-        btn.addActionListener(e -> action.run());
-        card.addMouseListener(new MouseAdapter() { public void mouseClicked(MouseEvent e) { action.run(); } });
-        card.add(texts, BorderLayout.CENTER); card.add(btn, BorderLayout.EAST);
-        outer.add(card, BorderLayout.CENTER); return outer;
-    }
-
-    static JSlider sliderRow(JPanel p, int rowIdx, String label, String tooltip, int min, int max, int val,
-                              Color accent, java.util.function.IntConsumer onChange) {
-        JPanel labelCol = new JPanel(new BorderLayout()); labelCol.setOpaque(false);
-        labelCol.setPreferredSize(new Dimension(90, 36));
-        JLabel lb = new JLabel(label); lb.setForeground(new Color(180,185,210)); lb.setFont(new Font("SansSerif",Font.BOLD,11));
-        JLabel tt = new JLabel(tooltip); tt.setForeground(new Color(70,80,110)); tt.setFont(new Font("SansSerif",Font.PLAIN,8));
-        labelCol.add(lb, BorderLayout.NORTH); labelCol.add(tt, BorderLayout.SOUTH);
-        GridBagConstraints c = new GridBagConstraints();
-        c.gridx=0; c.gridy=rowIdx; c.insets=new Insets(3,0,3,8); c.anchor=GridBagConstraints.WEST; p.add(labelCol,c);
-        JSlider s = new JSlider(min, max, Math.min(max, Math.max(min, val))); s.setOpaque(false); s.setToolTipText(tooltip);
-        c=new GridBagConstraints(); c.gridx=1; c.gridy=rowIdx; c.weightx=1.0; c.fill=GridBagConstraints.HORIZONTAL; c.insets=new Insets(3,0,3,6); p.add(s,c);
-        JLabel vl = new JLabel(String.valueOf(val)); vl.setForeground(accent); vl.setFont(new Font("Consolas",Font.BOLD,13));
-        vl.setPreferredSize(new Dimension(40,20)); vl.setHorizontalAlignment(SwingConstants.RIGHT);
-        s.addChangeListener(e -> { int v=s.getValue(); vl.setText(""+v); onChange.accept(v); });
-        s.addMouseListener(new MouseAdapter() {
-            public void mousePressed(MouseEvent e) {
-                onChange.accept(s.getValue());
-            }
-        });
-        c=new GridBagConstraints(); c.gridx=2; c.gridy=rowIdx; c.insets=new Insets(3,0,3,0); c.anchor=GridBagConstraints.EAST; p.add(vl,c);
-        return s;
-    }
+        // ── Panel de control derecho ──────────────────────────────────────────
+        static class FillPanel extends JPanel implements javax.swing.Scrollable {
+            FillPanel(LayoutManager lm) { super(lm); }
+            public Dimension getPreferredScrollableViewportSize() { return getPreferredSize(); }
+            public int getScrollableUnitIncrement(Rectangle vr, int o, int d) { return 16; }
+            public int getScrollableBlockIncrement(Rectangle vr, int o, int d) { return 60; }
+            public boolean getScrollableTracksViewportWidth() { return true; }
+            public boolean getScrollableTracksViewportHeight() { return false; }
+        }
 
-    static JButton actionBtn(String text, Color bg) {
-        JButton b = new JButton(text); b.setBackground(bg); b.setForeground(Color.WHITE);
-        b.setFont(new Font("SansSerif",Font.BOLD,11)); b.setFocusPainted(false); b.setBorderPainted(false);
-        b.setOpaque(true); b.setCursor(Cursor.getPredefinedCursor(Cursor.HAND_CURSOR));
-        b.setMargin(new Insets(6,10,6,10)); return b;
-    }
+        static JPanel buildCtrl(VicBarcelonaTrafficSim sim) {
+            JPanel mainP = new JPanel(new BorderLayout());
+            mainP.setBackground(new Color(22, 24, 34));
+
+            final FillPanel scrollContent = new FillPanel(new GridBagLayout());
+            scrollContent.setBackground(new Color(22, 24, 34));
+            scrollContent.setBorder(BorderFactory.createEmptyBorder(0, 0, 20, 0));
+            final int[] row = {0};
+
+            // Cabecera
+            JPanel header = new JPanel(new BorderLayout());
+            header.setBackground(new Color(15, 17, 26));
+            header.setBorder(BorderFactory.createEmptyBorder(14, 16, 14, 16));
+            JLabel hTitle = new JLabel("Panel de Control");
+            hTitle.setForeground(new Color(130, 200, 255));
+            hTitle.setFont(new Font("SansSerif", Font.BOLD, 15));
+            JLabel hSub = new JLabel("Hilos y Concurrencia — C17 Vic/Barcelona");
+            hSub.setForeground(new Color(80, 90, 120));
+            hSub.setFont(new Font("SansSerif", Font.ITALIC, 11));
+            JPanel hTexts = new JPanel(new BorderLayout());
+            hTexts.setOpaque(false);
+            hTexts.add(hTitle, BorderLayout.NORTH);
+            hTexts.add(hSub, BorderLayout.SOUTH);
+            header.add(hTexts, BorderLayout.WEST);
+            addRow(scrollContent, row, header);
+            addRow(scrollContent, row, accentLine(new Color(40, 60, 100)));
+
+            // Escenarios
+            addRow(scrollContent, row, sectionHeader("RETOS INTERACTIVOS", "Provoca un error de hilos y arreglalo", new Color(80, 200, 130)));
+
+            addRow(scrollContent, row, presetCard("1. Reto: El Cuello de Botella",
+                "Problema: Capacidad de rotonda a 1 (Mutex). Solo pasa 1 coche. Solución: Sube 'Capacidad' a 15 para permitir paralelismo.",
+                new Color(55,35,10), new Color(220,140,30), () ->
+                    preset(sim, Scenario.parse("reto:1", RETOS[0]).initial())));
+
+            addRow(scrollContent, row, presetCard("2. Reto: Servidor Saturado",
+                "Problema: El Pool principal (Barcelona) procesa muy lento y la cola crece. Solución: Sube la salida de 'Barcelona' a 80.",
+                new Color(60,25,20), new Color(220,70,50), () ->
+                    preset(sim, Scenario.parse("reto:2", RETOS[1]).initial())));
+
+            addRow(scrollContent, row, presetCard("3. Reto: Operacion lenta en Lock",
+                "Problema: Entrar a la rotonda es rapido, pero salir tarda mucho (I/O lento). Solución: Sube 'Vel. proceso' a 40.",
+                new Color(40,15,45), new Color(190,80,220), () ->
+                    preset(sim, Scenario.parse("reto:3", RETOS[2]).initial())));
+
+            addRow(scrollContent, row, presetCard("4. Reto: Exceso de recurso compartido",
+                "Problema: Casi todos los hilos intentan usar la rotonda a la vez. Solución: Baja '% desviados' a 20 para evitar la contención.",
+                new Color(15,40,55), new Color(40,150,220), () ->
+                    preset(sim, Scenario.parse("reto:4", RETOS[3]).initial())));
+
+            // Tutor en vivo (solo diagnostico de atasco, breve)
+            addRow(scrollContent, row, sectionHeader("Explicacion en vivo", "Estado del sistema en tiempo real", new Color(120, 170, 255)));
+            JPanel tutorPanel = new JPanel(new BorderLayout(10, 0));
+            tutorPanel.setBackground(new Color(28, 32, 48));
+            tutorPanel.setBorder(BorderFactory.createCompoundBorder(
+                BorderFactory.createMatteBorder(0,3,0,0,new Color(80,130,220)),
+                BorderFactory.createEmptyBorder(10,12,10,12)));
+            sim.lAdv = new JLabel();
+            sim.lAdv.setForeground(new Color(100, 200, 255));
+            sim.lAdv.setFont(new Font("SansSerif", Font.PLAIN, 11));
+            synchronized (sim) { sim.diagnostic(); } // lee jamTracker, que tick() reescribe
+            JLabel tutorIcon = new JLabel("?");
+            tutorIcon.setForeground(new Color(80, 130, 220));
+            tutorIcon.setFont(new Font("SansSerif", Font.BOLD, 22));
+            tutorPanel.add(tutorIcon, BorderLayout.WEST);
+            tutorPanel.add(sim.lAdv, BorderLayout.CENTER);
+            JPanel tutorWrap = new JPanel(new BorderLayout());
+            tutorWrap.setOpaque(false);
+            tutorWrap.setBorder(BorderFactory.createEmptyBorder(0,10,0,10));
+            tutorWrap.add(tutorPanel, BorderLayout.CENTER);
+            addRow(scrollContent, row, tutorWrap);
+            addRow(scrollContent, row, vSpacer(8));
+
+            // PRODUCTORES
+            addRow(scrollContent, row, sectionHeader("PRODUCTORES — Entradas", "Generan nuevos threads (coches) al sistema", new Color(70,200,120)));
+            addRow(scrollContent, row, conceptChip("Coche = Thread  |  Cola = BlockingQueue  |  Entrada saturada = productor bloqueado"));
+            JPanel slidersIn = new JPanel(new GridBagLayout());
+            slidersIn.setOpaque(false);
+            slidersIn.setBorder(BorderFactory.createEmptyBorder(4,10,4,10));
+            sim.sVic = sliderRow(slidersIn, 0, "Vic", "threads/min desde Vic", 0, 150, sim.cfg.get().entryVic(), new Color(70,200,120), v -> { sim.set("vic", v); sim.explainAction("vic",v); });
+            sim.sCen = sliderRow(slidersIn, 1, "Centelles", "threads/min desde Centelles", 0, 150, sim.cfg.get().entryCen(), new Color(70,160,230), v -> { sim.set("cen", v); sim.explainAction("cen",v); });
+            addRow(scrollContent, row, slidersIn);
+            addRow(scrollContent, row, vSpacer(8));
+
+            // CONSUMIDORES
+            addRow(scrollContent, row, sectionHeader("CONSUMIDORES — Salidas", "Velocidad a la que los threads abandonan el sistema", new Color(220,80,75)));
+            addRow(scrollContent, row, conceptChip("Thread pool = salida  |  Saturacion = consumidor mas lento que el productor"));
+            JPanel slidersOut = new JPanel(new GridBagLayout());
+            slidersOut.setOpaque(false);
+            slidersOut.setBorder(BorderFactory.createEmptyBorder(4,10,4,10));
+            sim.sBcn  = sliderRow(slidersOut, 0, "Barcelona", "capacidad del consumidor principal", 0, 80, sim.cfg.get().exitBcn(), new Color(220,80,75), v -> { sim.set("bcn", v); sim.explainAction("bcn",v); });
+            sim.sGran = sliderRow(slidersOut, 1, "Granollers", "velocidad de la salida secundaria", 0, 80, sim.cfg.get().exitGran(), new Color(230,160,50), v -> { sim.set("gran", v); sim.explainAction("gran",v); });
+            addRow(scrollContent, row, slidersOut);
+            addRow(scrollContent, row, vSpacer(8));
+
+            // SECCION CRITICA
+            addRow(scrollContent, row, sectionHeader("SECCION CRITICA — Rotonda", "Simula un bloque synchronized o un Mutex", new Color(190,140,255)));
+            addRow(scrollContent, row, conceptChip("Rotonda = synchronized  |  Capacidad = Semaphore(N)  |  Cola = threads bloqueados en el lock"));
+            JPanel slidersRab = new JPanel(new GridBagLayout());
+            slidersRab.setOpaque(false);
+            slidersRab.setBorder(BorderFactory.createEmptyBorder(4,10,4,10));
+            sim.sRabCap  = sliderRow(slidersRab, 0, "Capacidad", "max threads en la seccion critica", 1, 40, sim.cfg.get().rabCap(), new Color(190,140,255), v -> { sim.set("rabcap", v); sim.explainAction("rabcap",v); });
+            sim.sRabExit = sliderRow(slidersRab, 1, "Vel. proceso", "velocidad de proceso dentro del lock", 1, 50, sim.cfg.get().rabExit(), new Color(160,120,230), v -> { sim.set("rabexit", v); sim.explainAction("rabexit",v); });
+            sim.sPct     = sliderRow(slidersRab, 2, "% desviados", "% de threads que usan la sec. critica", 0, 100, sim.cfg.get().pctExit(), new Color(140,100,210), v -> { sim.set("pct", v); sim.explainAction("pct",v); });
+            addRow(scrollContent, row, slidersRab);
+            JPanel cbP1 = new JPanel(new BorderLayout());
+            cbP1.setOpaque(false);
+            cbP1.setBorder(BorderFactory.createEmptyBorder(2,14,4,10));
+            JCheckBox cbRab = sim.cbRab = new JCheckBox("Activar rotonda (seccion critica)", sim.cfg.get().rabOn());
+            styleCb(cbRab);
+            cbRab.addActionListener(e -> { int v = cbRab.isSelected() ? 1 : 0; sim.set("rab", v); sim.explainAction("rab", v); });
+            cbP1.add(cbRab, BorderLayout.WEST);
+            addRow(scrollContent, row, cbP1);
+            addRow(scrollContent, row, vSpacer(8));
+
+            // LOCKS Y FISICA
+            addRow(scrollContent, row, sectionHeader("LOCKS Y FISICA", "Semaforos explicitos y parametros de simulacion", new Color(255,190,70)));
+            addRow(scrollContent, row, conceptChip("Semaforo = ReentrantLock  |  Distancia = tiempo CPU  |  Tick = frecuencia del scheduler"));
+            JPanel slidersPhys = new JPanel(new GridBagLayout());
+            slidersPhys.setOpaque(false);
+            slidersPhys.setBorder(BorderFactory.createEmptyBorder(4,10,4,10));
+            sim.sGap  = sliderRow(slidersPhys, 0, "Distancia min", "separacion entre threads (tiempo CPU)", 1, 8, sim.cfg.get().gap(), new Color(255,190,70), v -> { sim.set("gap", v); sim.explainAction("gap",v); });
+            sim.sTick = sliderRow(slidersPhys, 1, "Velocidad sim", "ms por tick (menor = mas rapido)", 20, 300, sim.cfg.get().tickMs(), new Color(200,160,60), v -> { sim.set("tick", v); sim.explainAction("tick",v); });
+            addRow(scrollContent, row, slidersPhys);
+            JPanel cbP2 = new JPanel(new BorderLayout());
+            cbP2.setOpaque(false);
+            cbP2.setBorder(BorderFactory.createEmptyBorder(2,14,4,10));
+            JCheckBox cbLt = sim.cbLights = new JCheckBox("Activar semaforos (ReentrantLock)", sim.cfg.get().lightsOn());
+            styleCb(cbLt);
+            cbLt.addActionListener(e -> { int v = cbLt.isSelected() ? 1 : 0; sim.set("lights", v); sim.explainAction("lights", v); });
+            cbP2.add(cbLt, BorderLayout.WEST);
+            addRow(scrollContent, row, cbP2);
+            JPanel cbP4 = new JPanel(new BorderLayout());
+            cbP4.setOpaque(false);
+            cbP4.setBorder(BorderFactory.createEmptyBorder(2,14,4,10));
+            JLabel lEng = new JLabel("Motor de movimiento  ");
+            lEng.setForeground(new Color(165,170,200)); lEng.setFont(new Font("SansSerif", Font.PLAIN, 11));
+            JComboBox<String> cbEng = sim.cbEng = new JComboBox<>(ENGINES);
+            cbEng.setSelectedIndex(sim.engine);
+            cbEng.setEnabled(sim.zones == null); // las zonas solo ejecutan el motor clasico
+            cbEng.setFont(new Font("SansSerif", Font.PLAIN, 11));
+            cbEng.addActionListener(e -> sim.engine = cbEng.getSelectedIndex());
+            cbP4.add(lEng, BorderLayout.WEST);
+            cbP4.add(cbEng, BorderLayout.CENTER);
+            addRow(scrollContent, row, cbP4);
+            JPanel cbP3 = new JPanel(new BorderLayout());
+            cbP3.setOpaque(false);
+            cbP3.setBorder(BorderFactory.createEmptyBorder(2,14,4,10));
+            JCheckBox cbTh = sim.cbThreads = new JCheckBox("Hilos reales (un hilo por coche)", sim.carThreads != null);
+            styleCb(cbTh);
+            cbTh.addActionListener(e -> sim.carThreads(cbTh.isSelected()));
+            cbP3.add(cbTh, BorderLayout.WEST);
+            addRow(scrollContent, row, cbP3);
+            addRow(scrollContent, row, vSpacer(8));
+
+            // Botones
+            addRow(scrollContent, row, accentLine(new Color(40,50,80)));
+            JPanel ctrlBar = new JPanel(new FlowLayout(FlowLayout.LEFT, 10, 10));
+            ctrlBar.setBackground(new Color(18, 20, 30));
+            JButton bPause = actionBtn("Pausar", new Color(180,150,40));
+            bPause.addActionListener(e -> {
+                sim.running = !sim.running;
+                bPause.setText(sim.running ? "Pausar" : "Seguir");
+                bPause.setBackground(sim.running ? new Color(180,150,40) : new Color(50,160,80));
+            });
+            JButton bReset = actionBtn("Reiniciar", new Color(160,60,50));
+            bReset.addActionListener(e -> {
+                synchronized (sim) { // todo de una vez: un tick a medias volveria a pintar los coches de IDM en road
+                    for (int l = 0; l < LANES; l++) Arrays.fill(sim.road[l], null);
+                    sim.rabCars.clear(); sim.qVic.clear(); sim.qCen.clear();
+                    sim.exGran = sim.exBcn = sim.enVic = sim.enCen = 0;
+                    sim.simMs = sim.simSec = sim.lastH = 0; sim.series.clear();
+                    for (Light l : sim.lights) { l.red = false; l.last = 0; }
+                    sim.gridReplaced();
+                }
+                sim.view.repaint();
+            });
+            JButton bSave = actionBtn("Guardar", new Color(60,110,170));
+            bSave.addActionListener(e -> {
+                JFileChooser fc = new JFileChooser(); fc.setSelectedFile(new java.io.File("trafico.ckpt"));
+                if (fc.showSaveDialog(mainP) != JFileChooser.APPROVE_OPTION) return;
+                try { sim.saveCheckpoint(fc.getSelectedFile().toPath()); }
+                catch (IOException ex) { JOptionPane.showMessageDialog(mainP, "No se pudo guardar: " + ex.getMessage()); }
+            });
+            JButton bLoad = actionBtn("Cargar", new Color(60,140,130));
+            bLoad.addActionListener(e -> {
+                JFileChooser fc = new JFileChooser();
+                if (fc.showOpenDialog(mainP) != JFileChooser.APPROVE_OPTION) return;
+                try { sim.loadCheckpoint(fc.getSelectedFile().toPath()); syncSliders(sim); sim.view.repaint(); }
+                catch (IOException | RuntimeException ex) { JOptionPane.showMessageDialog(mainP, "No se pudo cargar: " + ex.getMessage()); }
+            });
+            ctrlBar.add(bPause);
+            ctrlBar.add(bReset);
+            ctrlBar.add(bSave);
+            ctrlBar.add(bLoad);
+            JButton bLab = actionBtn("Laboratorio", new Color(120,90,170));
+            bLab.addActionListener(e -> openLab(sim));
+            ctrlBar.add(bLab);
+            addRow(scrollContent, row, ctrlBar);
+
+            // Glue final
+            GridBagConstraints gc = new GridBagConstraints();
+            gc.gridx = 0; gc.gridy = row[0]++; gc.weighty = 1.0; gc.fill = GridBagConstraints.BOTH;
+            scrollContent.add(Box.createGlue(), gc);
+
+            JScrollPane scroll = new JScrollPane(scrollContent);
+            scroll.setHorizontalScrollBarPolicy(JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
+            scroll.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED);
+            scroll.setBorder(BorderFactory.createEmptyBorder());
+            scroll.getVerticalScrollBar().setUnitIncrement(14);
+            scroll.getViewport().setBackground(new Color(22, 24, 34));
+            scroll.getVerticalScrollBar().setUI(new javax.swing.plaf.basic.BasicScrollBarUI() {
+                @Override protected void configureScrollBarColors() { thumbColor = new Color(55,65,100); trackColor = new Color(22,24,34); }
+                @Override protected JButton createDecreaseButton(int o) { JButton b = new JButton(); b.setPreferredSize(new Dimension(0,0)); return b; }
+                @Override protected JButton createIncreaseButton(int o) { JButton b = new JButton(); b.setPreferredSize(new Dimension(0,0)); return b; }
+            });
+            mainP.add(scroll, BorderLayout.CENTER);
+            return mainP;
+        }
 
-    static void styleCb(JCheckBox cb) {
-        cb.setForeground(new Color(165,170,200)); cb.setOpaque(false);
-        cb.setFont(new Font("SansSerif",Font.PLAIN,11)); cb.setAlignmentX(Component.LEFT_ALIGNMENT);
-    }
+        // ── Helpers de UI ─────────────────────────────────────────────────────
+        static void addRow(JPanel p, int[] row, JComponent c) {
+            GridBagConstraints gc = new GridBagConstraints();
+            gc.gridx = 0; gc.gridy = row[0]++; gc.weightx = 1.0;
+            gc.fill = GridBagConstraints.HORIZONTAL; gc.anchor = GridBagConstraints.NORTHWEST;
+            p.add(c, gc);
+        }
+
+        static JPanel vSpacer(int h) {
+            JPanel p = new JPanel(); p.setOpaque(false);
+            p.setPreferredSize(new Dimension(0,h)); p.setMinimumSize(new Dimension(0,h));
+            return p;
+        }
+
+        static JPanel accentLine(Color c) {
+            JPanel l = new JPanel(); l.setBackground(c);
+            l.setPreferredSize(new Dimension(0,1)); l.setMinimumSize(new Dimension(0,1));
+            return l;
+        }
+
+        static JPanel sectionHeader(String title, String subtitle, Color accent) {
+            JPanel p = new JPanel(new BorderLayout(8, 0));
+            p.setBackground(new Color(26, 28, 40));
+            p.setBorder(BorderFactory.createCompoundBorder(
+                BorderFactory.createMatteBorder(2,0,0,0,new Color(35,40,65)),
+                BorderFactory.createEmptyBorder(9,10,7,10)));
+            JLabel t = new JLabel(title);
+            t.setForeground(accent); t.setFont(new Font("SansSerif", Font.BOLD, 12));
+            JLabel s = new JLabel("<html><i><font color='#555870'>" + subtitle + "</font></i></html>");
+            s.setFont(new Font("SansSerif", Font.ITALIC, 9));
+            JPanel texts = new JPanel(new BorderLayout()); texts.setOpaque(false);
+            texts.add(t, BorderLayout.NORTH); texts.add(s, BorderLayout.CENTER);
+            JPanel bar = new JPanel(); bar.setBackground(accent); bar.setPreferredSize(new Dimension(4,0));
+            p.add(bar, BorderLayout.WEST); p.add(texts, BorderLayout.CENTER);
+            return p;
+        }
+
+        static JPanel conceptChip(String text) {
+            JPanel wrap = new JPanel(new BorderLayout()); wrap.setOpaque(false);
+            wrap.setBorder(BorderFactory.createEmptyBorder(0,10,0,10));
+            JPanel p = new JPanel(new BorderLayout());
+            p.setBackground(new Color(32, 36, 52));
+            p.setBorder(BorderFactory.createCompoundBorder(
+                BorderFactory.createMatteBorder(1,1,1,1,new Color(45,55,90)),
+                BorderFactory.createEmptyBorder(5,10,5,10)));
+            JLabel l = new JLabel("<html><div style='color:#606ca8;font-size:9px'>" + text + "</div></html>");
+            l.setFont(new Font("SansSerif", Font.PLAIN, 9));
+            p.add(l, BorderLayout.CENTER); wrap.add(p, BorderLayout.CENTER);
+            return wrap;
+        }
+
+        static JPanel presetCard(String title, String desc, Color bg, Color accent, Runnable action) {
+            JPanel outer = new JPanel(new BorderLayout()); outer.setOpaque(false);
+            outer.setBorder(BorderFactory.createEmptyBorder(2,10,2,10));
+            JPanel card = new JPanel(new BorderLayout(8,0)); card.setBackground(bg);
+            card.setBorder(BorderFactory.createCompoundBorder(
+                BorderFactory.createMatteBorder(0,4,0,0,accent),
+                BorderFactory.createEmptyBorder(7,10,7,8)));
+            card.setCursor(Cursor.getPredefinedCursor(Cursor.HAND_CURSOR));
+            JPanel texts = new JPanel(new BorderLayout()); texts.setOpaque(false);
+            JLabel tl = new JLabel("<html><b>" + title + "</b></html>");
+            tl.setForeground(Color.WHITE); tl.setFont(new Font("SansSerif",Font.BOLD,11));
+            JLabel dl = new JLabel("<html><div style='color:#8898bb;font-size:9px'>" + desc + "</div></html>");
+            dl.setFont(new Font("SansSerif",Font.PLAIN,9));
+            texts.add(tl, BorderLayout.NORTH); texts.add(dl, BorderLayout.CENTER);
+            JButton btn = new JButton(">");
+            btn.setBackground(accent); btn.setForeground(Color.WHITE);
+            btn.setFont(new Font("SansSerif",Font.BOLD,13));
+            btn.setFocusPainted(false); btn.setBorderPainted(false); btn.setOpaque(true);
+            btn.setPreferredSize(new Dimension(30,30));
+            btn.setCursor(Cursor.getPredefinedCursor(Cursor.HAND_CURSOR));
+            btn.addActionListener(e -> action.run());
+            card.addMouseListener(new MouseAdapter() { public void mouseClicked(MouseEvent e) { action.run(); } });
+            card.add(texts, BorderLayout.CENTER); card.add(btn, BorderLayout.EAST);
+            outer.add(card, BorderLayout.CENTER); return outer;
+        }
+
+        static JSlider sliderRow(JPanel p, int rowIdx, String label, String tooltip, int min, int max, int val,
+                                  Color accent, java.util.function.IntConsumer onChange) {
+            JPanel labelCol = new JPanel(new BorderLayout()); labelCol.setOpaque(false);
+            labelCol.setPreferredSize(new Dimension(90, 36));
+            JLabel lb = new JLabel(label); lb.setForeground(new Color(180,185,210)); lb.setFont(new Font("SansSerif",Font.BOLD,11));
+            JLabel tt = new JLabel(tooltip); tt.setForeground(new Color(70,80,110)); tt.setFont(new Font("SansSerif",Font.PLAIN,8));
+            labelCol.add(lb, BorderLayout.NORTH); labelCol.add(tt, BorderLayout.SOUTH);
+            GridBagConstraints c = new GridBagConstraints();
+            c.gridx=0; c.gridy=rowIdx; c.insets=new Insets(3,0,3,8); c.anchor=GridBagConstraints.WEST; p.add(labelCol,c);
+            JSlider s = new JSlider(min, max, Math.min(max, Math.max(min, val))); s.setOpaque(false); s.setToolTipText(tooltip);
+            c=new GridBagConstraints(); c.gridx=1; c.gridy=rowIdx; c.weightx=1.0; c.fill=GridBagConstraints.HORIZONTAL; c.insets=new Insets(3,0,3,6); p.add(s,c);
+            JLabel vl = new JLabel(String.valueOf(val)); vl.setForeground(accent); vl.setFont(new Font("Consolas",Font.BOLD,13));
+            vl.setPreferredSize(new Dimension(40,20)); vl.setHorizontalAlignment(SwingConstants.RIGHT);
+            s.addChangeListener(e -> { int v=s.getValue(); vl.setText(""+v); onChange.accept(v); });
+            s.addMouseListener(new MouseAdapter() {
+                public void mousePressed(MouseEvent e) {
+                    onChange.accept(s.getValue());
+                }
+            });
+            c=new GridBagConstraints(); c.gridx=2; c.gridy=rowIdx; c.insets=new Insets(3,0,3,0); c.anchor=GridBagConstraints.EAST; p.add(vl,c);
+            return s;
+        }
+
+        static JButton actionBtn(String text, Color bg) {
+            JButton b = new JButton(text); b.setBackground(bg); b.setForeground(Color.WHITE);
+            b.setFont(new Font("SansSerif",Font.BOLD,11)); b.setFocusPainted(false); b.setBorderPainted(false);
+            b.setOpaque(true); b.setCursor(Cursor.getPredefinedCursor(Cursor.HAND_CURSOR));
+            b.setMargin(new Insets(6,10,6,10)); return b;
+        }
+
+        static void styleCb(JCheckBox cb) {
+            cb.setForeground(new Color(165,170,200)); cb.setOpaque(false);
+            cb.setFont(new Font("SansSerif",Font.PLAIN,11)); cb.setAlignmentX(Component.LEFT_ALIGNMENT);
+        }
+
+        // Publica todos los valores del reto de una vez y despues mueve los controles
+        static void preset(VicBarcelonaTrafficSim s, UnaryOperator<Params> op) {
+            s.cfg.updateAndGet(op);
+            syncSliders(s);
+        }
 
-    static void syncSliders(VicBarcelonaTrafficSim s) {
-        if (s.sVic    != null) s.sVic.setValue(s.entryVic);
-        if (s.sCen    != null) s.sCen.setValue(s.entryCen);
-        if (s.sGran   != null) s.sGran.setValue(s.exitGran);
-        if (s.sBcn    != null) s.sBcn.setValue(s.exitBcn);
-        if (s.sGap    != null) s.sGap.setValue(s.gap);
-        if (s.sTick   != null) s.sTick.setValue(s.tickMs);
-        if (s.sRabCap != null) s.sRabCap.setValue(s.rabCap);
-        if (s.sRabExit!= null) s.sRabExit.setValue(s.rabExit);
-        if (s.sPct    != null) s.sPct.setValue(s.pctExit);
-        s.diagnostic();
+        static void syncSliders(VicBarcelonaTrafficSim s) {
+            Params p = s.cfg.get();
+            if (s.sVic    != null) s.sVic.setValue(p.entryVic());
+            if (s.sCen    != null) s.sCen.setValue(p.entryCen());
+            if (s.sGran   != null) s.sGran.setValue(p.exitGran());
+            if (s.sBcn    != null) s.sBcn.setValue(p.exitBcn());
+            if (s.sGap    != null) s.sGap.setValue(p.gap());
+            if (s.sTick   != null) s.sTick.setValue(p.tickMs());
+            if (s.sRabCap != null) s.sRabCap.setValue(p.rabCap());
+            if (s.sRabExit!= null) s.sRabExit.setValue(p.rabExit());
+            if (s.sPct    != null) s.sPct.setValue(p.pctExit());
+            if (s.cbRab   != null) s.cbRab.setSelected(p.rabOn());
+            if (s.cbLights!= null) s.cbLights.setSelected(p.lightsOn());
+            if (s.cbEng   != null) s.cbEng.setSelectedIndex(s.engine);
+            synchronized (s) { s.diagnostic(); } // en pausa no hay tick que lo recalcule
+        }
     }
-}
\ No newline at end of file
+}